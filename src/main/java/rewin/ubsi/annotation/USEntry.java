@@ -33,6 +33,8 @@ import java.lang.annotation.*;
     )
     public Object echo(ServiceContext ctx, Object obj) throws Exception;
     注：只能修饰public、非static成员函数，可以多个
+    注：返回CompletableFuture/CompletionStage的接口为异步接口，容器不占用工作线程等待其完成，
+        完成后再执行@USAfter及过滤器的后置接口并返回结果
  */
 @Documented
 @Target(ElementType.METHOD)
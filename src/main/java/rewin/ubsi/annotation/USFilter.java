@@ -44,4 +44,7 @@ public @interface USFilter {
     // since 1.0.1
     String  container() default "";         // 依赖的容器的版本号
     String[] syslib()   default {};         // 需要加载到SystemClassLoader中的Jar包，例如"jaxen-1.2.0.jar"
+    // since 2.4.0
+    String  scope()     default UService.SCOPE_REQUEST;     // 实例的范围，缺省每个请求新建实例（与之前的版本相同），
+                                                            // 无状态的过滤器可以使用"pooled"或"singleton"（需要线程安全）
 }
@@ -49,4 +49,10 @@ public @interface UService {
     String[] syslib()   default {};         // 需要加载到SystemClassLoader中的Jar包，例如"jaxen-1.2.0.jar"
     // since 2.0.0
     boolean singleton() default false;      // 是否单例服务
+    // since 2.4.0
+    String  scope()     default SCOPE_REQUEST;  // 服务实例的范围，无状态的服务可以使用"pooled"或"singleton"
+
+    String  SCOPE_REQUEST = "request";      // 每个请求新建服务实例
+    String  SCOPE_POOLED = "pooled";        // 服务实例放入对象池重复使用（同时只处理一个请求）
+    String  SCOPE_SINGLETON = "singleton";  // 所有请求共用一个服务实例（需要线程安全）
 }
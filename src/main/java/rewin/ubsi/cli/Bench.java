@@ -0,0 +1,161 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.cli;
+
+import org.dom4j.io.SAXReader;
+import rewin.ubsi.common.JsonCodec;
+import rewin.ubsi.common.Util;
+import rewin.ubsi.consumer.Context;
+import rewin.ubsi.container.Bootstrap;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+
+/**
+ * 命令行工具：同步请求的基准测试，统计每次请求在调用线程上分配的内存及平均耗时
+ */
+public class Bench {
+
+    static String serviceName;
+    static Object[] entryAndParams;
+    static int timeout = 0;
+    static int count = 50000;
+    static int warmup = 20000;
+
+    static long errors = 0;
+    static String errorMsg = null;
+
+    /* 发送n次同步请求，返回耗时（纳秒） */
+    static long run(int n) {
+        long t = System.nanoTime();
+        for ( int i = 0; i < n; i ++ ) {
+            try {
+                Context context = Context.request(serviceName, entryAndParams);
+                context.setTimeout(timeout);
+                context.call();
+            } catch (Exception e) {
+                errors ++;
+                if ( errorMsg == null )
+                    errorMsg = e.getMessage();
+            }
+        }
+        return System.nanoTime() - t;
+    }
+
+    /** 主程序入口 */
+    public static void main(String[] args) throws Exception {
+        Context context = null;
+        boolean xml = false;
+        boolean local = false;
+        String reqFile = null;
+        int index = 0;
+        try {
+            for ( String arg : args ) {
+                if ( "-local".equals(arg) )
+                    local = true;
+                else if ( index == 0 ) {
+                    reqFile = arg;
+                    index ++;
+                } else if ( index == 1 ) {
+                    count = Integer.parseInt(arg);
+                    index ++;
+                } else if ( index == 2 ) {
+                    warmup = Integer.parseInt(arg);
+                    index ++;
+                }
+            }
+            if ( reqFile != null ) {
+                int dot = reqFile.lastIndexOf('.');
+                if ( dot >= 0 && "xml".equalsIgnoreCase(reqFile.substring(dot+1)) )
+                    xml = true;
+                context = xml ? Request.fromXml(new SAXReader().read(new File(reqFile))) : Request.fromJson(reqFile);
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+
+        if ( context == null || count <= 0 || Util.checkEmpty(context.getService()) == null  || Util.checkEmpty(context.getEntry()) == null ) {
+            System.out.println("\nUsage: bench request.json|xml [" + count + "<count>] [" + warmup + "<warm-up>] [-local]\n");
+            System.out.println("\t-local: start a container in the current directory and send requests to it\n");
+            if ( xml ) {
+                System.out.println("xml file format:");
+                System.out.println("\t<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+                System.out.println(Request.XML_REQUEST);
+            } else {
+                System.out.println("json file format:");
+                System.out.println(Request.JSON_REQUEST);
+            }
+            return;
+        }
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if ( !mx.isThreadAllocatedMemorySupported() ) {
+            System.out.println("\nError: thread allocated memory is not supported by this JVM\n");
+            return;
+        }
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        serviceName = context.getService();
+        entryAndParams = new Object[1 + context.getParamCount()];
+        entryAndParams[0] = context.getEntry();
+        for ( int i = 1; i < entryAndParams.length; i ++ )
+            entryAndParams[i] = context.getParam(i-1);
+        timeout = context.getTimeout();
+
+        if ( local )
+            Bootstrap.start();      // 容器同时启动了Consumer
+        else {
+            Context.setLogApp(InetAddress.getLocalHost().getHostName(), "rewin.ubsi.cli.Bench");
+            Context.startup(".");
+        }
+        try {
+            System.out.print("\n" + serviceName + ":" + entryAndParams[0] + "(): ");
+            try {
+                Object res = context.call();
+                Request.printJson(JsonCodec.encodeType(res));
+            } catch (Exception e) {
+                System.out.println("\n");
+                e.printStackTrace();
+                return;
+            }
+
+            System.out.println("\nwarm-up: " + warmup + " calls ...");
+            run(warmup);
+            errors = 0;
+            errorMsg = null;
+
+            // 只统计调用线程上的分配（请求的创建/过滤/编码及等待结果），不包括I/O线程上的结果解码
+            long tid = Thread.currentThread().getId();
+            long bytes = mx.getThreadAllocatedBytes(tid);
+            long time = run(count);
+            bytes = mx.getThreadAllocatedBytes(tid) - bytes;
+            System.out.println("calls: " + count + ", errors: " + errors +
+                    ", time: " + (time / count / 1000) + "us/call" +
+                    ", rate: " + (count * 1000000000L / Math.max(time, 1)) + "/s" +
+                    ", alloc: " + (bytes / count) + " bytes/call");
+            if ( errorMsg != null )
+                System.out.println("~~~ request error: " + errorMsg);
+            System.out.println();
+        } finally {
+            if ( local )
+                Bootstrap.stop();
+            else
+                Context.shutdown();
+        }
+    }
+}
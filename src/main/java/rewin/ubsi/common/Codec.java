@@ -56,6 +56,8 @@ public class Codec {
     static final int ID = 14;           // MongoDB ObjectID
     static final int PATTERN = 15;      // java.util.regex.Pattern，正则表达式
 
+    static final byte[] HEX = "0123456789abcdef".getBytes();    // 十六进制字符
+
     /** 将Java对象打包到ByteBuf中，打包格式：数据类型 + [数据长度] + 数据，其中：
             数据类型：   1个byte，4~7位表示数据类型，0~3位表示：
                                 NULL：   0
@@ -392,6 +394,25 @@ public class Codec {
         ByteBuf buf = Unpooled.wrappedBuffer(bytes);
         return decode(buf);
     }
+    /** 编码数组的头部，之后需要依次编码length个元素，用于直接编码而不创建中间数组 */
+    public static void encodeArray(ByteBuf buf, int length) {
+        putLength(buf, ARR, length);
+    }
+    /** 编码Map的头部，之后需要依次编码length对键值，用于直接编码而不创建中间Map */
+    public static void encodeMap(ByteBuf buf, int length) {
+        putLength(buf, MAP, length);
+    }
+    /** 编码int，避免装箱 */
+    public static void encodeInt(ByteBuf buf, int value) {
+        putInt(buf, value);
+    }
+    /** 编码字符串：ASCII前缀 + 8位十六进制的整数，避免创建String */
+    public static void encodeHexID(ByteBuf buf, byte[] prefix, int value) {
+        putLength(buf, STR, prefix.length + 8);
+        buf.writeBytes(prefix);
+        for ( int x = 28; x >= 0; x -= 4 )
+            buf.writeByte(HEX[(value >>> x) & 0xf]);
+    }
     /** 将object编码为byte[] */
     public static byte[] encodeBytes(Object data) {
         ByteBuf buf = Unpooled.buffer();
@@ -17,7 +17,6 @@
 package rewin.ubsi.common;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
@@ -67,14 +66,18 @@ public class IOData {
         }
     }
 
-    /** 向Channel输出数据 */
-    public static boolean write(Channel ch, Object obj) {
-        if ( !ch.isActive() )
-            return false;
-        ByteBuf body = Unpooled.directBuffer();
-        Codec.encode(body, obj);
+    final static int HEAD_SIZE = 5;     // 数据长度头部的最大字节数
 
-        int length = body.readableBytes();
+    /** 分配输出缓冲区（使用Channel的内存池），预留数据长度的头部，编码数据后使用write(Channel, ByteBuf)输出 */
+    public static ByteBuf buffer(Channel ch) {
+        ByteBuf buf = ch.alloc().directBuffer();
+        buf.writerIndex(HEAD_SIZE);
+        return buf;
+    }
+
+    /** 向Channel输出buffer()分配的缓冲区，缓冲区会被释放 */
+    public static boolean write(Channel ch, ByteBuf buf) {
+        int length = buf.writerIndex() - HEAD_SIZE;
         int size = 0;
         if ( length >= 128 ) {
             if (length < 256)
@@ -86,22 +89,35 @@ public class IOData {
             else
                 size = 4;
         }
-        byte[] buf = new byte[1+size];
+        int index = HEAD_SIZE - 1 - size;   // 头部在预留空间中靠后对齐
         if ( length < 128 )
-            buf[0] = (byte)length;
+            buf.setByte(index, length);
         else {
-            buf[0] = (byte)(0xA8 | size);
+            buf.setByte(index, 0xA8 | size);
             for ( int x = 0; x < size; x ++ )
-                buf[1+x] = (byte)(length >> (x * 8));
+                buf.setByte(index + 1 + x, length >> (x * 8));
         }
+        buf.readerIndex(index);
 
-        ByteBuf head = Unpooled.wrappedBuffer(buf);
-        ByteBuf data = Unpooled.wrappedBuffer(head, body);
         if ( !ch.isActive() ) {
-            data.release();
+            buf.release();
             return false;
         }
-        ch.writeAndFlush(data);
+        ch.writeAndFlush(buf);
         return true;
     }
+
+    /** 向Channel输出数据 */
+    public static boolean write(Channel ch, Object obj) {
+        if ( !ch.isActive() )
+            return false;
+        ByteBuf buf = buffer(ch);
+        try {
+            Codec.encode(buf, obj);
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+        return write(ch, buf);
+    }
 }
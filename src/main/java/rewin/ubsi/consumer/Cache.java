@@ -0,0 +1,161 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import rewin.ubsi.common.Codec;
+import rewin.ubsi.common.LogUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UBSI Consumer的请求结果缓存（按字节数限制大小的LRU）
+ */
+class Cache {
+
+    final static int ITEM_OVERHEAD = 64;    // 每个缓存项的额外字节数（估算）
+
+    // 缓存项
+    static class Item {
+        String  Service;        // 服务名字
+        String  Entry;          // 接口名字
+        int     ParamHash;      // 接口参数编码的哈希值，用于按参数清除缓存
+        byte[]  Data;           // 结果数据的编码
+        long    Expire;         // 过期的时间戳
+        int     Size;           // 占用的字节数
+    }
+
+    static LinkedHashMap<ByteBuffer, Item> Items = new LinkedHashMap<>(256, 0.75f, true);   // 按访问顺序排列的缓存项
+    static long Size = 0;       // 缓存项的总字节数
+    static Set<String> Services = ConcurrentHashMap.newKeySet();    // 容器提示过缓存时间的服务
+
+    /* 接口参数编码的哈希值 */
+    static int getParamHash(Object[] param) {
+        return Arrays.hashCode(Codec.encodeBytes(param));
+    }
+
+    /* 查找缓存，命中时设置请求的结果 */
+    static boolean get(ByteBuffer key, Context context) {
+        Statistics rec = context.getStat();
+        byte[] data = null;
+        synchronized (Items) {
+            Item item = Items.get(key);
+            if ( item != null ) {
+                if ( item.Expire > System.currentTimeMillis() )
+                    data = item.Data;
+                else
+                    remove(key);
+            }
+        }
+        if ( data != null ) {
+            try {
+                context.setResult(ErrorCode.OK, Codec.decodeBytes(data));
+                rec.cache_hit.incrementAndGet();
+                return true;
+            } catch (Exception e) {
+                Context.log(LogUtil.ERROR, "cache", e);
+            }
+        }
+        rec.cache_miss.incrementAndGet();
+        return false;
+    }
+
+    /* 保存请求的正常结果，ttl为路由配置的缓存时间（秒数），结果的Tailer中有缓存时间时优先使用 */
+    static void put(ByteBuffer key, Context context, Object data, int ttl) {
+        Object hint = context.getTailer(Context.TAILER_CACHE);
+        if ( hint instanceof Number )
+            ttl = ((Number)hint).intValue();
+        long max = Context.CacheSize * 1024L * 1024L;
+        if ( ttl <= 0 || max <= 0 )
+            return;
+        Item item = new Item();
+        item.Service = context.Service;
+        item.Entry = (String)context.Param[0];
+        item.ParamHash = getParamHash(context.Param);
+        item.Data = Codec.encodeBytes(data);
+        item.Expire = System.currentTimeMillis() + ttl * 1000L;
+        item.Size = key.capacity() + item.Data.length + ITEM_OVERHEAD;
+        if ( item.Size > max / 16 )
+            return;     // 过大的结果不缓存
+        synchronized (Items) {
+            remove(key);
+            Items.put(key, item);
+            Size += item.Size;
+            trim(max);
+        }
+    }
+
+    /* 删除缓存项，需要在synchronized(Items)中调用 */
+    static Item remove(Object key) {
+        Item item = Items.remove(key);
+        if ( item != null )
+            Size -= item.Size;
+        return item;
+    }
+
+    /* 淘汰最久未使用的缓存项，需要在synchronized(Items)中调用 */
+    static void trim(long max) {
+        for ( Iterator<Item> iter = Items.values().iterator(); Size > max && iter.hasNext(); ) {
+            Item item = iter.next();
+            iter.remove();
+            Size -= item.Size;
+            Statistics.getStatistics(item.Service, item.Entry).cache_evict.incrementAndGet();
+        }
+    }
+
+    /* 按配置的大小淘汰缓存项 */
+    static void trim() {
+        synchronized (Items) {
+            trim(Context.CacheSize * 1024L * 1024L);
+        }
+    }
+
+    /* 清除缓存，entry为null表示服务的所有接口，params为null表示接口的所有参数 */
+    static void invalidate(String service, String entry, Object[] params) {
+        int hash = 0;
+        if ( entry != null && params != null ) {
+            Object[] param = new Object[params.length + 1];
+            param[0] = entry;
+            System.arraycopy(params, 0, param, 1, params.length);
+            hash = getParamHash(param);
+        }
+        synchronized (Items) {
+            for ( Iterator<Item> iter = Items.values().iterator(); iter.hasNext(); ) {
+                Item item = iter.next();
+                if ( !item.Service.equals(service) )
+                    continue;
+                if ( entry != null && !item.Entry.equals(entry) )
+                    continue;
+                if ( params != null && item.ParamHash != hash )
+                    continue;   // 哈希值冲突时会多清除缓存项，不影响正确性
+                iter.remove();
+                Size -= item.Size;
+            }
+        }
+    }
+
+    /* 收到清除缓存的广播消息：[ "service", "entry", [params] ] */
+    static void invalidate(Object message) {
+        if ( !(message instanceof Object[]) )
+            return;
+        Object[] msg = (Object[])message;
+        if ( msg.length < 1 || !(msg[0] instanceof String) )
+            return;
+        invalidate((String)msg[0], msg.length > 1 ? (String)msg[1] : null, msg.length > 2 ? (Object[])msg[2] : null);
+    }
+}
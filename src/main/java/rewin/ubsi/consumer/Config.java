@@ -42,6 +42,23 @@ public class Config {
         public int          timeout_request = Context.TimeoutRequest;       // 缺省的请求超时时间
         public int          timeout_reconnect = Context.TimeoutReconnect;   // 连接失败后重新尝试的间隔时间
 
+        public int          conn_min = Context.ConnectionMin;           // 到每个容器的最少连接数
+        public int          conn_max = Context.ConnectionMax;           // 到每个容器的最多连接数
+        public int          conn_pending = Context.ConnectionPending;   // 连接上的待处理请求达到此数量时新建连接
+        public int          conn_idle = Context.ConnectionIdle;         // 超出最少连接数的空闲连接的回收时间
+        public boolean      conn_prewarm = Context.ConnectionPrewarm;   // 是否预先建立到容器的连接
+        public boolean      conn_reuse = Context.ConnectionReuse;       // 单独连接的请求是否复用连接
+
+        public String       zone = Context.Zone;                        // 所在的区域
+        public int          locality_load = Context.LocalityLoad;       // 本地节点的负载低于此百分比时不路由到远端节点
+        public int          slow_start = Context.SlowStart;             // 新加入或恢复的容器逐步增加权重的时间
+        public int          breaker_error = Context.BreakerError;       // 容器的错误率达到此百分比时熔断
+        public int          breaker_time = Context.BreakerTime;         // 熔断的时间
+        public int          outlier_latency = Context.OutlierLatency;   // 容器的平均响应时间超过其他容器的此倍数时熔断
+        public int          retry_budget = Context.RetryBudget;         // 已发出请求的重试次数不超过请求数量的此百分比
+        public int          cache_size = Context.CacheSize;             // 结果缓存的最大容量
+        public int          concurrency_max = Context.ConcurrencyMax;   // 每个容器的并发限制的上限
+
         public List<String> filters;        // 请求过滤器的类名字
     }
 
@@ -60,6 +77,23 @@ public class Config {
         public String   timeout_request = "缺省的请求超时时间，秒";
         public String   timeout_reconnect = "连接失败后重新尝试的间隔时间，秒";
 
+        public String   conn_min = "到每个容器的最少连接数";
+        public String   conn_max = "到每个容器的最多连接数";
+        public String   conn_pending = "连接上的待处理请求达到此数量时新建连接（不超过最多连接数）";
+        public String   conn_idle = "超出最少连接数的空闲连接的回收时间，秒";
+        public String   conn_prewarm = "是否在加载注册表或容器启动时，预先建立到提供了已请求过的服务的容器的连接";
+        public String   conn_reuse = "单独连接的请求（direct()或setConnectAlone(true)）是否复用连接（每个连接同时只处理一个请求，空闲连接按conn_max/conn_idle回收），false表示每次请求新建连接并在完成后关闭";
+
+        public String   zone = "所在的区域（机房/机架等），路由时优先选择同一主机、其次同一区域的容器";
+        public String   locality_load = "本地节点的负载（等待数/最大等待数）低于此百分比时不路由到远端节点，0表示不区分本地节点";
+        public String   slow_start = "新加入或恢复的容器的路由权重从10%线性增加到100%的时间，秒，0表示不启用";
+        public String   breaker_error = "容器（或容器上的服务接口）在10秒内的错误率（超时/异常/过载等）达到此百分比时熔断，0表示不熔断";
+        public String   breaker_time = "熔断的时间，秒，连续熔断时加倍（最多8倍），熔断结束后先发送一个试探请求";
+        public String   outlier_latency = "容器在10秒内的平均响应时间超过其他容器平均值的此倍数时熔断（最多熔断一半的容器），0表示不检查";
+        public String   concurrency_max = "每个容器的并发限制（进行中的请求数量）的上限，并发限制从100开始，满负荷时增加、过载或超时时降低，0表示不限制（缺省）；超出限制时同步请求等待（I/O线程及回调线程中不等待），异步请求立即返回过载错误";
+        public String   cache_size = "结果缓存的最大容量，MB，0表示不缓存；缓存时间由路由配置的Cache项或容器返回的Tailer提示决定";
+        public String   retry_budget = "每个服务的重试次数不超过请求数量的此百分比（最多允许突发10次），用于幂等请求的连接中断/过载/停机错误时向其他容器重试，0表示不重试（连接失败时请求尚未发出，总是改选其他容器一次，不受此限制）";
+
         public String   filters = "请求过滤器的类名字（多值），格式: [\"{filterClass}\", ...]";
     }
 
@@ -17,120 +17,501 @@
 package rewin.ubsi.consumer;
 
 import io.netty.channel.Channel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.collection.IntObjectHashMap;
 import rewin.ubsi.common.JedisUtil;
 import rewin.ubsi.common.LogUtil;
+import rewin.ubsi.common.Util;
 
-import java.util.Map;
-import java.util.Set;
-import java.util.TimerTask;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * UBSI客户端的连接/请求管理
  */
 class Connector {
 
+    final static long CHECK_POOL = 1000;    // 检查连接池的时间间隔
+
     // Consumer的定时任务
     static class TimerDealer extends TimerTask {
-        long TimestampCheckTimeout = 0;     // 检查请求超时的时间戳
+        long TimestampCheckPool = 0;        // 检查连接池的时间戳
 
         public void run() {
-            // 检查请求timeout
-            if ( System.currentTimeMillis() - TimestampCheckTimeout > Context.REQUEST_TIMEOUT ) {
-                Set<Channel> set = DirectContext.keySet();
-                for (Channel ch : set) {
-                    Context context = DirectContext.get(ch);
-                    if (!check(context))
-                        continue;
-                    synchronized (context) {
-                        if (!setContextResult(context, ErrorCode.TIMEOUT, "request timeout", null))
-                            continue;
-                        DirectContext.remove(ch);
-                        ch.close();
-                    }
-                    context.resultCallback();
+            // 回收空闲连接，检查容器的健康状态
+            if ( System.currentTimeMillis() - TimestampCheckPool > CHECK_POOL ) {
+                checkPool();
+                Health.check();
+                TimestampCheckPool = System.currentTimeMillis();
+            }
+
+            if ( JedisUtil.isInited() )
+                Router.dealHeartbeat();
+            else
+                Context.initJedis();
+            if ( Router.IndexDirty )
+                Router.buildIndex();    // 连接失败/恢复导致的重建，不在I/O线程中进行
+        }
+    }
+
+    /** 一个连接上等待结果的请求，支持流ID的容器以连接内递增的流ID进行关联，否则以字符串的请求ID进行关联 */
+    static class Streams {
+        final boolean IntID;            // 容器是否支持整数的流ID
+        final String Prefix;            // 不支持流ID的容器：请求ID的前缀（每个连接全局唯一），请求ID = 前缀 + 8位十六进制的流ID
+        final byte[] PrefixBytes;       // 请求ID前缀的编码
+        int     NextID = 0;             // 最近分配的流ID
+        IntObjectHashMap<Context> Pending = new IntObjectHashMap<>();   // 等待结果的请求（流ID）
+        Map<String, Context> Legacy;    // 等待结果的请求（发送前已经确定了请求ID）
+        volatile int Count = 0;         // 等待结果的请求数量
+
+        Streams(String host, int port) {
+            IntID = isStreamID(host, port);
+            Prefix = IntID ? null : Util.getUUID();
+            PrefixBytes = IntID ? null : Prefix.getBytes();
+            if ( !IntID )
+                Legacy = new HashMap<>();
+        }
+
+        /* 加入请求并分配流ID（不为0），不支持流ID的容器如果请求ID已经确定则返回0（使用请求ID） */
+        synchronized int put(Context context) {
+            if ( !IntID && context.ReqID != null ) {
+                Legacy.put(context.ReqID, context);
+                count();
+                return 0;
+            }
+            do {
+                NextID = NextID == Integer.MAX_VALUE ? 1 : NextID + 1;
+            } while ( Pending.containsKey(NextID) );
+            Pending.put(NextID, context);
+            count();
+            return NextID;
+        }
+
+        /* 根据容器返回的流ID或请求ID获得请求 */
+        synchronized Context get(Object id) {
+            if ( id instanceof Integer )
+                return IntID ? Pending.get((Integer) id) : null;
+            if ( IntID || !(id instanceof String) )
+                return null;
+            String str = (String) id;
+            if ( str.length() != Prefix.length() + 8 || !str.startsWith(Prefix) )
+                return Legacy.get(str);
+            int sid = 0;
+            for ( int i = Prefix.length(); i < str.length(); i ++ ) {
+                int x = Character.digit(str.charAt(i), 16);
+                if ( x < 0 )
+                    return null;
+                sid = (sid << 4) | x;
+            }
+            return Pending.get(sid);
+        }
+
+        /* 移除请求 */
+        synchronized boolean remove(Context context) {
+            if ( context.StreamID != 0 ) {
+                if ( Pending.get(context.StreamID) != context )
+                    return false;
+                Pending.remove(context.StreamID);
+            } else if ( IntID || context.ReqID == null || !Legacy.remove(context.ReqID, context) )
+                return false;
+            count();
+            return true;
+        }
+
+        /* 移除所有的请求 */
+        synchronized List<Context> clear() {
+            List<Context> list = new ArrayList<>(Pending.values());
+            Pending.clear();
+            if ( !IntID ) {
+                list.addAll(Legacy.values());
+                Legacy.clear();
+            }
+            Count = 0;
+            return list;
+        }
+
+        /* 等待结果的请求数量 */
+        int size() {
+            return Count;
+        }
+
+        /* 更新等待结果的请求数量 */
+        void count() {
+            Count = Pending.size() + (Legacy == null ? 0 : Legacy.size());
+        }
+    }
+
+    /** 到同一个容器的连接池 */
+    static class Pool {
+        final String    Host;       // 主机名
+        final int       Port;       // 端口号
+        final String    Addr;       // 容器地址
+
+        volatile Channel[]  Channels = new Channel[0];      // 已建立的连接
+        AtomicReference<CompletableFuture<Channel>> Connecting = new AtomicReference<>();   // 正在建立的连接
+
+        Map<Channel, Long>  IdleTime = new HashMap<>();     // 连接开始空闲的时间戳（只在定时任务中访问）
+        List<Channel>       Closing = new ArrayList<>();    // 等待关闭的连接（只在定时任务中访问）
+
+        Pool(String host, int port, String addr) {
+            Host = host;
+            Port = port;
+            Addr = addr;
+        }
+
+        /* 选择待处理请求最少的连接，必要时新建连接 */
+        Channel get() throws Exception {
+            Channel ch = select();
+            return ch != null ? ch : getChannel(connecting());
+        }
+
+        /* 选择待处理请求最少的连接，需要扩充连接池时在后台新建连接；没有可用的连接时返回null */
+        Channel select() {
+            Channel[] chs = Channels;
+            Channel best = null;
+            int pending = Integer.MAX_VALUE;
+            for ( Channel ch : chs ) {
+                Streams streams = ChannelContext.get(ch);
+                if ( streams == null || !ch.isActive() )
+                    continue;
+                int n = streams.size();
+                if ( n < pending ) {
+                    best = ch;
+                    pending = n;
+                    if ( n == 0 )
+                        break;
                 }
+            }
+            if ( best != null ) {
+                if ( chs.length >= Context.ConnectionMax )
+                    return best;
+                if ( chs.length >= Context.ConnectionMin && pending < Context.ConnectionPending )
+                    return best;
+            }
+            connecting();       // 已经有可用的连接时不等待新建的连接
+            return best;
+        }
 
-                for (ConcurrentMap<String, Context> map : ChannelContext.values()) {
-                    if (map == null)
-                        continue;
-                    for (Context context : map.values()) {
-                        if (!check(context))
-                            continue;
-                        synchronized (context) {
-                            if (!setContextResult(context, ErrorCode.TIMEOUT, "request timeout", null))
-                                continue;
-                            map.remove(context.ReqID);
+        /* 获得正在建立的连接，没有时发起新的连接（不阻塞调用线程） */
+        CompletableFuture<Channel> connecting() {
+            while ( true ) {
+                CompletableFuture<Channel> future = Connecting.get();
+                if ( future != null )
+                    return future;
+                future = new CompletableFuture<>();
+                if ( !Connecting.compareAndSet(null, future) )
+                    continue;
+                Channel[] chs = Channels;
+                if ( chs.length >= Context.ConnectionMax )
+                    for ( Channel ch : chs )
+                        if ( ch.isActive() ) {
+                            Connecting.compareAndSet(future, null);     // 其他线程刚刚完成了连接
+                            future.complete(ch);
+                            return future;
                         }
-                        context.resultCallback();
+                connect(future);
+                return future;
+            }
+        }
+
+        /* 新建连接并加入连接池，在I/O线程中设置结果 */
+        void connect(final CompletableFuture<Channel> future) {
+            IOHandler.connectAsync(Host, Port).whenComplete((ch, e) -> {
+                if ( e == null ) {
+                    ChannelPool.put(ch, this);
+                    ChannelContext.put(ch, new Streams(Host, Port));
+                    synchronized (this) {
+                        Channel[] chs = Arrays.copyOf(Channels, Channels.length + 1);
+                        chs[chs.length - 1] = ch;
+                        Channels = chs;
                     }
                 }
+                Connecting.compareAndSet(future, null);     // 先加入连接池，再允许发起新的连接
+                if ( e == null )
+                    future.complete(ch);
+                else
+                    future.completeExceptionally(e);
+            });
+        }
 
-                for (Context context : MessageContext.values()) {
-                    if (!check(context))
-                        continue;
-                    synchronized (context) {
-                        if (!setContextResult(context, ErrorCode.TIMEOUT, "request timeout", null))
-                            continue;
-                        MessageContext.remove(context.ReqID);
-                    }
-                    context.resultCallback();
+        /* 等待结果的请求数量 */
+        int pending() {
+            int n = 0;
+            for ( Channel ch : Channels ) {
+                Streams streams = ChannelContext.get(ch);
+                if ( streams != null )
+                    n += streams.size();
+            }
+            return n;
+        }
+
+        /* 从连接池中移除连接 */
+        synchronized boolean remove(Channel ch) {
+            Channel[] chs = Channels;
+            for ( int i = 0; i < chs.length; i ++ ) {
+                if ( chs[i] != ch )
+                    continue;
+                Channel[] res = new Channel[chs.length - 1];
+                System.arraycopy(chs, 0, res, 0, i);
+                System.arraycopy(chs, i + 1, res, i, res.length - i);
+                Channels = res;
+                return true;
+            }
+            return false;
+        }
+
+        /* 回收超出最少连接数的空闲连接 */
+        void reap(long t) {
+            for ( Iterator<Channel> iter = Closing.iterator(); iter.hasNext(); ) {
+                Channel ch = iter.next();
+                Streams streams = ChannelContext.get(ch);
+                if ( streams == null || streams.size() == 0 || !ch.isActive() ) {
+                    iter.remove();
+                    ch.close();
                 }
+            }
 
-                TimestampCheckTimeout = System.currentTimeMillis();
+            Channel[] chs = Channels;
+            for ( Channel ch : chs ) {
+                Streams streams = ChannelContext.get(ch);
+                if ( streams == null || !ch.isActive() ) {
+                    remove(ch);
+                    IdleTime.remove(ch);
+                } else if ( streams.size() > 0 )
+                    IdleTime.remove(ch);
+                else if ( !IdleTime.containsKey(ch) )
+                    IdleTime.put(ch, t);
             }
 
-            if ( JedisUtil.isInited() )
-                Router.dealHeartbeat();
-            else
-                Context.initJedis();
+            chs = Channels;
+            int count = chs.length - Context.ConnectionMin;
+            for ( int i = chs.length - 1; i >= 0 && count > 0; i -- ) {
+                Long idle = IdleTime.get(chs[i]);
+                if ( idle == null || t - idle < Context.ConnectionIdle * 1000 )
+                    continue;
+                IdleTime.remove(chs[i]);
+                if ( remove(chs[i]) ) {
+                    Closing.add(chs[i]);    // 移出连接池，下次检查时如果仍然空闲则关闭
+                    count --;
+                }
+            }
         }
+    }
 
-        boolean check(Context context) {
-            if ( context == null || context.ResultStatus || context.Notify == null || context.Timeout == 0 )
-                return false;
-            return System.currentTimeMillis() - context.RequestTime >= context.Timeout * 1000;
+    /* 获取连接任务的结果 */
+    static Channel getChannel(Future<Channel> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof Exception )
+                throw (Exception)cause;
+            throw e;
         }
     }
 
-    static ConcurrentMap<String, FutureTask<Channel>> AddrChannel = new ConcurrentHashMap<String, FutureTask<Channel>>();
-    static ConcurrentMap<Channel, String> ChannelAddr = new ConcurrentHashMap<Channel, String>();
-    static ConcurrentMap<Channel, Context> DirectContext = new ConcurrentHashMap<Channel, Context>();
-    static ConcurrentMap<Channel, ConcurrentMap<String, Context>> ChannelContext = new ConcurrentHashMap<Channel, ConcurrentMap<String, Context>>();
+    static ConcurrentMap<String, Pool> AddrPool = new ConcurrentHashMap<String, Pool>();
+    static ConcurrentMap<Channel, Pool> ChannelPool = new ConcurrentHashMap<Channel, Pool>();
+    static ConcurrentMap<Channel, Streams> ChannelContext = new ConcurrentHashMap<Channel, Streams>();
     static ConcurrentMap<String, Context> MessageContext = new ConcurrentHashMap<String, Context>();
+    static ConcurrentMap<String, Deque<Channel>> AloneIdle = new ConcurrentHashMap<>();    // 单独请求的空闲连接
+    static ConcurrentMap<Channel, Long> AloneTime = new ConcurrentHashMap<>();              // 单独请求的连接开始空闲的时间戳
+
+    /* 到指定容器的连接上等待结果的请求数量 */
+    static int getPending(String addr) {
+        Pool pool = AddrPool.get(addr);
+        return pool == null ? 0 : pool.pending();
+    }
+
+    /* 容器是否支持整数的流ID（由容器的注册数据声明），没有注册数据的容器使用字符串的请求ID */
+    static boolean isStreamID(String host, int port) {
+        Map<String, Register.Container> containers = Router.Containers;
+        Register.Container container = containers == null ? null : containers.get(host + '#' + port);
+        return container != null && container.StreamID;
+    }
 
     /** 获取连接 */
-    static Channel get(final String host, final int port) throws Exception {
-        final String addr = host + '#' + port;
-        Future<Channel> fch = AddrChannel.get(addr);
-        if ( fch != null )
-            return fch.get();
-
-        FutureTask<Channel> newTask = new FutureTask<Channel>(new Callable<Channel>() {
-            public Channel call() throws Exception {
-                try {
-                    Channel ch = IOHandler.connect(host, port);
-                    ChannelAddr.put(ch, addr);
-                    ChannelContext.put(ch, new ConcurrentHashMap<String, Context>());
+    static Channel get(String host, int port) throws Exception {
+        return getPool(host, port).get();
+    }
+
+    /* 获得到指定容器的连接池 */
+    static Pool getPool(String host, int port) {
+        String addr = host + '#' + port;
+        Pool pool = AddrPool.get(addr);
+        if ( pool == null ) {
+            Pool newPool = new Pool(host, port, addr);
+            pool = AddrPool.putIfAbsent(addr, newPool);
+            if ( pool == null )
+                pool = newPool;
+        }
+        return pool;
+    }
+
+    /* 预先建立到容器的连接（不阻塞调用线程），addr的格式为"host#port" */
+    static void prewarm(String addr) {
+        int index = addr.lastIndexOf('#');
+        if ( index <= 0 || Router.Disabled.containsKey(addr) )
+            return;
+        try {
+            Pool pool = getPool(addr.substring(0, index), Integer.parseInt(addr.substring(index + 1)));
+            if ( pool.Channels.length < Context.ConnectionMin )
+                pool.connecting();
+        } catch (Exception e) {
+            Context.log(LogUtil.ERROR, "prewarm-" + addr, e);
+        }
+    }
+
+    /* 获得单独请求的连接：优先复用空闲的连接，每个连接同时只处理一个请求 */
+    static Channel getAlone(String host, int port) throws Exception {
+        Deque<Channel> idle = Context.ConnectionReuse ? AloneIdle.get(host + '#' + port) : null;
+        if ( idle != null ) {
+            for ( Channel ch = idle.pollFirst(); ch != null; ch = idle.pollFirst() ) {
+                AloneTime.remove(ch);
+                if ( ch.isActive() && ChannelContext.containsKey(ch) )
                     return ch;
-                } catch (Exception e) {
-                    AddrChannel.remove(addr);
-                    throw e;
+                ch.close();
+            }
+        }
+        Channel ch = IOHandler.connect(host, port);
+        ChannelContext.put(ch, new Streams(host, port));
+        return ch;
+    }
+
+    /* 单独请求结束后回收连接，连接中断或请求超时时关闭连接 */
+    static void releaseAlone(String addr, Channel ch, int code) {
+        Streams streams = ChannelContext.get(ch);
+        if ( !Context.ConnectionReuse || code == ErrorCode.TIMEOUT || code == ErrorCode.CHANNEL
+                || streams == null || streams.size() > 0 || !ch.isActive() ) {
+            ChannelContext.remove(ch);
+            ch.close();
+            return;
+        }
+        Deque<Channel> idle = AloneIdle.get(addr);
+        if ( idle == null ) {
+            Deque<Channel> newIdle = new ConcurrentLinkedDeque<>();
+            idle = AloneIdle.putIfAbsent(addr, newIdle);
+            if ( idle == null )
+                idle = newIdle;
+        }
+        AloneTime.put(ch, System.currentTimeMillis());
+        idle.offerFirst(ch);
+        if ( idle.size() > Context.ConnectionMax ) {
+            Channel last = idle.pollLast();     // 超出最多连接数时关闭最久未使用的连接
+            if ( last != null ) {
+                AloneTime.remove(last);
+                ChannelContext.remove(last);
+                last.close();
+            }
+        }
+    }
+
+    /* 检查所有的连接池 */
+    static void checkPool() {
+        long t = System.currentTimeMillis();
+        for ( Pool pool : AddrPool.values() )
+            pool.reap(t);
+        for ( Deque<Channel> idle : AloneIdle.values() )
+            for ( Channel ch : idle ) {
+                Long time = AloneTime.get(ch);
+                if ( time == null || t - time < Context.ConnectionIdle * 1000 )
+                    continue;
+                if ( idle.removeFirstOccurrence(ch) ) {
+                    AloneTime.remove(ch);
+                    ChannelContext.remove(ch);
+                    ch.close();
                 }
             }
-        });
-        FutureTask<Channel> task = AddrChannel.putIfAbsent(addr, newTask);
-        if ( task == null ) {
-            task = newTask;
-            task.run();
+    }
+
+    /* 设置异步请求的超时任务，在请求发送成功后调用 */
+    static void addTimeout(final Context context, final Channel ch, final boolean message) {
+        HashedWheelTimer wheel = IOHandler.IOWheel;
+        if ( wheel == null || context.Notify == null || context.Timeout <= 0 )
+            return;
+        long delay = context.Timeout * 1000L - (System.currentTimeMillis() - context.RequestTime);
+        synchronized (context) {
+            if ( context.ResultStatus )
+                return;
+            context.TimeoutTask = wheel.newTimeout(timeout -> dealTimeout(context, ch, message), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /* 设置对冲请求的定时任务，只用于连接池中的连接 */
+    static void addHedge(final Context context, final Channel ch) {
+        HashedWheelTimer wheel = IOHandler.IOWheel;
+        long delay = context.getHedgeDelay();
+        if ( wheel == null || delay <= 0 )
+            return;
+        synchronized (context) {
+            if ( context.ResultStatus )
+                return;
+            context.HedgeTask = wheel.newTimeout(timeout -> sendHedge(context, ch), delay, TimeUnit.MILLISECONDS);
         }
-        return task.get();
+    }
+
+    /* 向另一个容器发送对冲请求 */
+    static void sendHedge(Context context, Channel ch) {
+        synchronized (context) {
+            if ( context.ResultStatus || IOHandler.IOWheel == null )
+                return;     // 已有结果，或者正在关闭
+        }
+        try {
+            Context copy = context.copy(context.TargetContainer);
+            copy.callAsync((code, result) -> dealHedge(context, ch, copy, code, result), false);
+            context.getStat().hedge.incrementAndGet();
+        } catch (Exception e) {
+            // 没有其他可用的容器，继续等待原请求的结果
+        }
+    }
+
+    /* 对冲请求返回，先于原请求返回正常结果时作为原请求的结果 */
+    static void dealHedge(Context context, Channel ch, Context copy, int code, Object result) {
+        if ( code != ErrorCode.OK )
+            return;
+        synchronized (context) {
+            if ( context.ResultStatus )
+                return;
+            context.Hedged = true;
+            context.TargetContainer = copy.TargetContainer;
+            setContextResult(context, code, result, copy.Tailer);
+            context.getStat().hedge_win.incrementAndGet();
+            if ( context.Notify == null ) {
+                context.notifyAll();
+                return;
+            }
+            Streams streams = ChannelContext.get(ch);
+            if ( streams != null )
+                streams.remove(context);
+        }
+        context.resultCallback();
+    }
+
+    /* 异步请求超时 */
+    static void dealTimeout(Context context, Channel ch, boolean message) {
+        synchronized (context) {
+            if ( !setContextResult(context, ErrorCode.TIMEOUT, "request timeout", null) )
+                return;
+            if ( message )
+                MessageContext.remove(context.getReqID());
+            else {
+                Streams streams = ChannelContext.get(ch);
+                if ( streams != null )
+                    streams.remove(context);
+            }
+        }
+        context.resultCallback();
     }
 
     // 设置返回结果
     static boolean setContextResult(Context context, int code, Object data, Map<String,Object> tailer) {
         if ( context.ResultStatus )
             return false;
+        if ( context.TimeoutTask != null )
+            context.TimeoutTask.cancel();
+        if ( context.HedgeTask != null )
+            context.HedgeTask.cancel();
         context.setResult(code, data);
         context.setTailer(tailer);
         context.logResult();
@@ -138,17 +519,13 @@ class Connector {
     }
 
     /** 通过Socket得到请求结果 */
-    static void setChannelResponse(Channel ch, String id, byte code, Object data, Map<String,Object> tailer) {
-        Context context = DirectContext.get(ch);
-        ConcurrentMap<String, Context> map = null;
-        if ( context == null ) {
-            map = ChannelContext.get(ch);
-            if ( map == null )
-                return;
-            context = map.get(id);
-            if ( context == null )
-                return;
-        }
+    static void setChannelResponse(Channel ch, Object id, byte code, Object data, Map<String,Object> tailer) {
+        Streams streams = ChannelContext.get(ch);
+        if ( streams == null )
+            return;
+        Context context = streams.get(id);
+        if ( context == null )
+            return;
         synchronized (context) {
             if ( !setContextResult(context, code, data, tailer) )
                 return;
@@ -156,39 +533,20 @@ class Connector {
                 context.notifyAll();
                 return;
             }
-            if ( map == null ) {
-                DirectContext.remove(ch);
-                ch.close();
-            } else
-                map.remove(id);
+            streams.remove(context);
         }
         context.resultCallback();
     }
 
     /** Socket异常 */
     static void setChannelException(Channel ch, String msg) {
-        Context context = DirectContext.get(ch);
-        if ( context != null ) {
-            synchronized (context) {
-                if ( !setContextResult(context, ErrorCode.CHANNEL, msg, null) )
-                    return;
-                if ( context.Notify == null ) {
-                    context.notifyAll();
-                    return;
-                }
-                DirectContext.remove(ch);
-            }
-            context.resultCallback();
+        Pool pool = ChannelPool.remove(ch);
+        if ( pool != null )
+            pool.remove(ch);
+        Streams streams = ChannelContext.remove(ch);
+        if ( streams == null )
             return;
-        }
-
-        String addr = ChannelAddr.remove(ch);
-        if ( addr != null )
-            AddrChannel.remove(addr);
-        ConcurrentMap<String, Context> map = ChannelContext.remove(ch);
-        if ( map == null )
-            return;
-        for ( Context ctx : map.values() ) {
+        for ( Context ctx : streams.clear() ) {
             synchronized (ctx) {
                 if ( !setContextResult(ctx, ErrorCode.CHANNEL, msg, null) )
                     continue;
@@ -203,17 +561,19 @@ class Connector {
 
     /** 保存通过Socket得到结果的请求 */
     static void putChannelContext(Channel ch, Context context, boolean put) throws Exception {
-        ConcurrentMap<String, Context> map = ChannelContext.get(ch);
-        if ( map == null ) {
+        Streams streams = ChannelContext.get(ch);
+        if ( streams == null ) {
             if ( put )
                 throw new Context.ResultException(ErrorCode.CHANNEL, "socket channel invalid");
             setContextResult(context, ErrorCode.CHANNEL, "socket channel invalid", null);
             return;
         }
-        if ( put )
-            map.put(context.ReqID, context);
+        if ( put ) {
+            context.StreamID = streams.put(context);
+            context.IDPrefix = context.StreamID == 0 ? null : streams.PrefixBytes;
+        }
         else
-            map.remove(context.ReqID);
+            streams.remove(context);
     }
 
     /** 通过Message得到请求结果 */
@@ -230,7 +590,7 @@ class Connector {
         synchronized (context) {
             if ( !setContextResult(context, code, data, tailer) )
                 return;
-            MessageContext.remove(context.ReqID);
+            MessageContext.remove(id);
         }
         context.resultCallback();
     }
@@ -16,15 +16,26 @@
 
 package rewin.ubsi.consumer;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
+import io.netty.util.concurrent.FastThreadLocalThread;
 import org.slf4j.impl.UbsiLogger;
 import redis.clients.jedis.Jedis;
 import rewin.ubsi.common.*;
 
 import java.io.File;
 import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * UBSI微服务访问客户端
@@ -66,6 +77,9 @@ public class Context {
         /** 后置接口 */
         public void after(Context ctx);
     }
+    /** 无状态的请求过滤器，所有请求共享一个实例（需要线程安全） */
+    public static interface SharedFilter extends Filter {
+    }
 
     public final static int BEATHEART_RECV = 10;    // 读取心跳的超时时间
     public final static int BEATHEART_SEND = 3;     // 发送心跳的超时时间
@@ -79,11 +93,17 @@ public class Context {
     public final static byte FLAG_LOG = (byte)0x80;    // 强制记录日志
 
     public final static String CHANNEL_NOTIFY = "_ubsi_notify_";
+    public final static String CHANNEL_CACHE = "_ubsi_cache_";      // 清除结果缓存的广播频道
+    public final static String CHANNEL_REPLY = "_ubsi_reply_";      // 消息模式结果的回复频道的前缀，每个Consumer一个
     public final static byte[] REG_CONTAINER = "_ubsi_container_".getBytes();
     public final static byte[] REG_RESTFUL = "_ubsi_restful_".getBytes();
 
     public final static String HEADER_REQ_PARAMS = "_ubsi_req_params_";     // 请求Header中表示参数的key
     public final static String HEADER_REQ_FORWARD = "_ubsi_req_forward_";   // 请求转发的路径
+    public final static String HEADER_REQ_ID = "_ubsi_req_id_";             // 请求ID，用于日志跟踪
+    public final static String HEADER_REQ_REPLY = "_ubsi_req_reply_";       // 消息模式结果的回复频道
+    public final static String HEADER_REQ_DEADLINE = "_ubsi_req_deadline_"; // 请求的截止时间（毫秒时间戳），容器丢弃已过期的请求
+    public final static String TAILER_CACHE = "_ubsi_cache_ttl_";           // 结果Tailer中表示缓存时间（秒数）的key
 
     final static int MAX_IOTHREADS = 128;
     final static int MIN_IOTHREADS = 0;
@@ -97,6 +117,28 @@ public class Context {
     final static int MIN_REDISIDLE = 2;
     final static int MAX_REDISCONN = 128;
     final static int MIN_REDISCONN = 16;
+    final static int MAX_CONNECTIONS = 64;
+    final static int MIN_CONNECTIONS = 1;
+    final static int MAX_CONNPENDING = 10000;
+    final static int MIN_CONNPENDING = 1;
+    final static int MAX_CONNIDLE = 3600;
+    final static int MIN_CONNIDLE = 10;
+    final static int MAX_LOCALITYLOAD = 100;
+    final static int MIN_LOCALITYLOAD = 0;
+    final static int MAX_SLOWSTART = 600;
+    final static int MIN_SLOWSTART = 0;
+    final static int MAX_BREAKERERROR = 100;
+    final static int MIN_BREAKERERROR = 0;
+    final static int MAX_BREAKERTIME = 600;
+    final static int MIN_BREAKERTIME = 1;
+    final static int MAX_OUTLIERLATENCY = 100;
+    final static int MIN_OUTLIERLATENCY = 0;
+    final static int MAX_RETRYBUDGET = 100;
+    final static int MIN_RETRYBUDGET = 0;
+    final static int MAX_CACHESIZE = 4096;
+    final static int MIN_CACHESIZE = 0;
+    final static int MAX_CONCURRENCY = 100000;
+    final static int MIN_CONCURRENCY = 0;
 
     public static boolean LogNoRouting = true;      // 是否输出路由失败日志
 
@@ -104,6 +146,22 @@ public class Context {
     static int          TimeoutConnection = 5;      // 新建Socket连接时的超时时间
     static int          TimeoutRequest = 10;        // 请求的超时时间
     static int          TimeoutReconnect = 600;     // 连接重试的超时时间
+    static int          ConnectionMin = 1;          // 到每个容器的最少连接数
+    static int          ConnectionMax = 4;          // 到每个容器的最多连接数
+    static int          ConnectionPending = 100;    // 连接上的待处理请求达到此数量时新建连接
+    static int          ConnectionIdle = 60;        // 超出最少连接数的空闲连接的回收时间
+    static boolean      ConnectionPrewarm = false;  // 是否预先建立到容器的连接
+    static boolean      ConnectionReuse = true;     // 单独连接的请求是否复用连接
+    static String       LocalHost = null;           // 本机的主机名
+    static String       Zone = null;                // 所在的区域
+    static int          LocalityLoad = 80;          // 本地节点的负载低于此百分比时不路由到远端节点，0表示不区分本地节点
+    static int          SlowStart = 30;             // 新加入或恢复的容器逐步增加权重的时间（秒数），0表示不启用
+    static int          BreakerError = 50;          // 容器的错误率达到此百分比时熔断，0表示不熔断
+    static int          BreakerTime = 10;           // 熔断的时间（秒数），连续熔断时加倍
+    static int          OutlierLatency = 3;         // 容器的平均响应时间超过其他容器的此倍数时熔断，0表示不检查
+    static int          RetryBudget = 10;           // 重试次数不超过请求数量的此百分比，0表示不重试
+    static int          CacheSize = 32;             // 结果缓存的最大容量（MB），0表示不缓存
+    static int          ConcurrencyMax = 0;         // 每个容器的并发限制的上限，0表示不限制（缺省）
 
     static String       RedisHost = null;           // Redis主机名
     static int          RedisPort = 6379;           // Redis端口号
@@ -114,6 +172,26 @@ public class Context {
     static int          RedisMaxConn = 128;         // Redis连接池的最大数量
 
     static List<Class<? extends Filter>> Filters = new ArrayList<>();   // 请求过滤器的class列表
+    static FilterTemplate Template = new FilterTemplate();             // 请求过滤器的模板
+    static Executor     CallbackExecutor = ForkJoinPool.commonPool();   // 完成CompletableFuture的线程池
+
+    final static ThreadLocal<Boolean> InCallback = new ThreadLocal<>();    // 是否在回调线程池中执行
+
+    /** 设置完成CompletableFuture结果的线程池（避免在I/O线程中执行业务代码），null表示使用ForkJoinPool.commonPool() */
+    public static void setCallbackExecutor(Executor executor) {
+        CallbackExecutor = executor == null ? ForkJoinPool.commonPool() : task -> executor.execute(() -> {
+            InCallback.set(Boolean.TRUE);
+            try {
+                task.run();
+            } finally {
+                InCallback.remove();
+            }
+        });
+    }
+    /* 当前线程是否I/O线程、定时器线程或者结果回调线程，这些线程不能阻塞等待 */
+    static boolean isCallbackThread() {
+        return Thread.currentThread() instanceof FastThreadLocalThread || ForkJoinTask.inForkJoinPool() || InCallback.get() != null;
+    }
 
     /** 获得redis服务的地址：[ "IP", PORT ] */
     public static Object[] getRedisAddress() {
@@ -127,20 +205,51 @@ public class Context {
         return null;
     }
 
+    /* 请求过滤器的模板 */
+    static class FilterTemplate {
+        Filter[]    Shared = null;          // 共享的过滤器实例，非共享的为null
+        Class<? extends Filter>[] Classes;  // 过滤器的class
+        boolean     AllShared = true;       // 是否都是共享的过滤器（可以直接作为请求的过滤器数组）
+    }
+
+    /* 设置请求过滤器，共享的过滤器预先生成实例 */
+    static void setFilters(List<Class<? extends Filter>> filters) throws Exception {
+        FilterTemplate template = new FilterTemplate();
+        if ( !filters.isEmpty() ) {
+            template.Shared = new Filter[filters.size()];
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Class<? extends Filter>[] classes = filters.toArray(new Class[filters.size()]);
+            template.Classes = classes;
+            for ( int i = 0; i < template.Classes.length; i ++ ) {
+                if ( SharedFilter.class.isAssignableFrom(template.Classes[i]) )
+                    template.Shared[i] = template.Classes[i].newInstance();
+                else
+                    template.AllShared = false;
+            }
+        }
+        Filters = filters;
+        Template = template;
+    }
+
     /** 获得UBSI请求的客户端实例 */
     public static Context request(String service, Object... entryAndParams) throws Exception {
         if ( service == null || entryAndParams == null || entryAndParams.length == 0 || entryAndParams[0] == null ||
                 !(entryAndParams[0] instanceof String) || ((String)entryAndParams[0]).length() == 0 )
             throw new ResultException(ErrorCode.REQUEST, "invalid arguments");
         Context context = new Context();
-        context.ReqID = Util.getUUID();
         context.Service = service;
         context.Param = entryAndParams;
         context.LogAccess = context.isForceLog();
-        List<Class<? extends Filter>> filters = Filters;
-        context.FilterInstances = new Filter[filters.size()];
-        for ( int i = 0; i < context.FilterInstances.length; i ++ )
-            context.FilterInstances[i] = filters.get(i).newInstance();
+        FilterTemplate template = Template;
+        if ( template.AllShared )
+            context.FilterInstances = template.Shared;  // 过滤器数组只读，可以在请求间共享
+        else {
+            context.FilterInstances = new Filter[template.Shared.length];
+            for ( int i = 0; i < context.FilterInstances.length; i ++ ) {
+                Filter filter = template.Shared[i];
+                context.FilterInstances[i] = filter != null ? filter : template.Classes[i].newInstance();
+            }
+        }
         return context;
     }
 
@@ -228,6 +337,32 @@ public class Context {
 
     static long                 JedisTimestamp = 0;     // JedisUtil初始化的时间戳
     static JedisUtil.Listener   JedisListener = null;   // Redis消息监听
+    static String               ReplyChannel = null;    // 本Consumer的消息模式结果的回复频道
+
+    /* Redis消息监听：容器心跳、结果缓存失效、本Consumer回复频道中消息模式的结果 */
+    static JedisUtil.Listener newListener() {
+        return new JedisUtil.Listener() {
+            @Override
+            public void onMessage(String channel, Object message) {
+                try {
+                    if (message == null)
+                        return;
+                    if ( CHANNEL_CACHE.equals(channel) )
+                        Cache.invalidate(message);
+                    else if (message instanceof String) {
+                        Router.Heartbeats.offer((String) message);
+                        setTimeHeartbeat();
+                    } else if (message instanceof Object[])
+                        Connector.setMessageResponse(message);
+                } catch (Exception e) {
+                    log(LogUtil.ERROR, "message", e);
+                }
+            }
+            @Override
+            public void onEvent(String channel, Object event) {
+            }
+        };
+    }
 
     /* 初始化JetisUtil */
     static void initJedis() {
@@ -244,26 +379,10 @@ public class Context {
             Router.loadRegister();  // 加载服务注册表
 
             if ( JedisListener == null ) {
-                JedisListener = new JedisUtil.Listener() {
-                    @Override
-                    public void onMessage(String channel, Object message) {
-                        try {
-                            if (message == null)
-                                return;
-                            if (message instanceof String) {
-                                Router.Heartbeats.offer((String) message);
-                                setTimeHeartbeat();
-                            } else if (message instanceof Object[])
-                                Connector.setMessageResponse(message);
-                        } catch (Exception e) {
-                            log(LogUtil.ERROR, "message", e);
-                        }
-                    }
-                    @Override
-                    public void onEvent(String channel, Object event) {
-                    }
-                };
-                JedisListener.subscribe(CHANNEL_NOTIFY);
+                JedisListener = newListener();
+                String reply = CHANNEL_REPLY + Util.getUUID();
+                JedisListener.subscribe(CHANNEL_NOTIFY, CHANNEL_CACHE, reply);
+                ReplyChannel = reply;
             }
         } catch (Exception e) {
             JedisUtil.close();
@@ -283,6 +402,21 @@ public class Context {
             TimeoutConnection = config.timeout_connect;
             TimeoutRequest = config.timeout_request;
             TimeoutReconnect = config.timeout_reconnect;
+            ConnectionMin = config.conn_min;
+            ConnectionMax = config.conn_max;
+            ConnectionPending = config.conn_pending;
+            ConnectionIdle = config.conn_idle;
+            ConnectionPrewarm = config.conn_prewarm;
+            ConnectionReuse = config.conn_reuse;
+            Zone = Util.checkEmpty(config.zone);
+            LocalityLoad = config.locality_load;
+            SlowStart = config.slow_start;
+            BreakerError = config.breaker_error;
+            BreakerTime = config.breaker_time;
+            OutlierLatency = config.outlier_latency;
+            RetryBudget = config.retry_budget;
+            CacheSize = config.cache_size;
+            ConcurrencyMax = config.concurrency_max;
             RedisHost = config.redis_host;
             RedisPort = config.redis_port;
             RedisMasterName = config.redis_master_name;
@@ -299,9 +433,16 @@ public class Context {
                         throw new Exception("class <" + cname + "> is not a Consumer-Filter");
                     Filters.add(cls);
                 }
+                setFilters(Filters);
             }
         }
 
+        try {
+            LocalHost = InetAddress.getLocalHost().getHostName().toLowerCase();
+        } catch (Exception e) {
+            LocalHost = null;
+        }
+
         // 读取本地路由表
         Register.Router[] routers = Util.readJsonFile(getLocalFile(ROUTER_FILE), Register.Router[].class);
         enableRouter(routers);
@@ -324,6 +465,7 @@ public class Context {
     /** 关闭UBSI客户端 */
     public static void shutdown() {
         Filters.clear();
+        Template = new FilterTemplate();
         IOHandler.close();
         JedisUtil.close();
         LogUtil.stop();
@@ -368,6 +510,19 @@ public class Context {
         config.timeout_connect = Util.checkMinMax(config.timeout_connect, MIN_TOCONNECTION, MAX_TOCONNECTION);
         config.timeout_request = Util.checkMinMax(config.timeout_request, MIN_TOREQUEST, MAX_TOREQUEST);
         config.timeout_reconnect = Util.checkMinMax(config.timeout_reconnect, MIN_TORECONNECT, MAX_TORECONNECT);
+        config.conn_min = Util.checkMinMax(config.conn_min, MIN_CONNECTIONS, MAX_CONNECTIONS);
+        config.conn_max = Util.checkMinMax(config.conn_max, config.conn_min, MAX_CONNECTIONS);
+        config.conn_pending = Util.checkMinMax(config.conn_pending, MIN_CONNPENDING, MAX_CONNPENDING);
+        config.conn_idle = Util.checkMinMax(config.conn_idle, MIN_CONNIDLE, MAX_CONNIDLE);
+        config.zone = Util.checkEmpty(config.zone);
+        config.locality_load = Util.checkMinMax(config.locality_load, MIN_LOCALITYLOAD, MAX_LOCALITYLOAD);
+        config.slow_start = Util.checkMinMax(config.slow_start, MIN_SLOWSTART, MAX_SLOWSTART);
+        config.breaker_error = Util.checkMinMax(config.breaker_error, MIN_BREAKERERROR, MAX_BREAKERERROR);
+        config.breaker_time = Util.checkMinMax(config.breaker_time, MIN_BREAKERTIME, MAX_BREAKERTIME);
+        config.outlier_latency = Util.checkMinMax(config.outlier_latency, MIN_OUTLIERLATENCY, MAX_OUTLIERLATENCY);
+        config.retry_budget = Util.checkMinMax(config.retry_budget, MIN_RETRYBUDGET, MAX_RETRYBUDGET);
+        config.cache_size = Util.checkMinMax(config.cache_size, MIN_CACHESIZE, MAX_CACHESIZE);
+        config.concurrency_max = Util.checkMinMax(config.concurrency_max, MIN_CONCURRENCY, MAX_CONCURRENCY);
     }
     /** 动态更新配置 */
     public static void setConfig(Config.Consumer config) throws Exception {
@@ -380,13 +535,31 @@ public class Context {
                     throw new Exception("class <" + cname + "> is not a Consumer-Filter");
                 filters.add(cls);
             }
-            Filters = filters;
+            setFilters(filters);
         }
         checkConfig(config);
         Util.saveJsonFile(getLocalFile(CONFIG_FILE), config);
         TimeoutConnection = config.timeout_connect;
         TimeoutRequest = config.timeout_request;
         TimeoutReconnect = config.timeout_reconnect;
+        ConnectionMin = config.conn_min;
+        ConnectionMax = config.conn_max;
+        ConnectionPending = config.conn_pending;
+        ConnectionIdle = config.conn_idle;
+        ConnectionPrewarm = config.conn_prewarm;
+        ConnectionReuse = config.conn_reuse;
+        Zone = config.zone;
+        LocalityLoad = config.locality_load;
+        SlowStart = config.slow_start;
+        BreakerError = config.breaker_error;
+        BreakerTime = config.breaker_time;
+        OutlierLatency = config.outlier_latency;
+        RetryBudget = config.retry_budget;
+        CacheSize = config.cache_size;
+        ConcurrencyMax = config.concurrency_max;
+        Cache.trim();
+        Router.buildIndex();
+        Router.prewarm(Router.Containers, null);
     }
 
     /** 获得本地路由表 */
@@ -414,13 +587,21 @@ public class Context {
                     return 0;
                 }
             });
-        Router.LocalTable = router;
+        Router.setLocalTable(router);
     }
     /** 设置本地路由表 */
     public static void setRouteTable(Register.Router[] router) throws Exception {
         Util.saveJsonFile(getLocalFile(ROUTER_FILE), router);
         enableRouter(router);
     }
+    /** 获得本机的主机名 */
+    public static String getLocalHost() {
+        return LocalHost;
+    }
+    /** 获得所在的区域 */
+    public static String getZone() {
+        return Zone;
+    }
     /** 获得服务注册表 */
     public static Map<String, Register.Container> getRegister() {
         return Router.Containers;
@@ -571,6 +752,15 @@ public class Context {
         return new Logger(appTag, appID);
     }
 
+    /** 清除结果缓存（Redis有效时广播到所有的Consumer），entry为null表示服务的所有接口，params为空表示接口的所有参数（参数的类型需要与请求时一致） */
+    public static void invalidateCache(String service, String entry, Object... params) {
+        if ( entry == null || (params != null && params.length == 0) )
+            params = null;
+        Cache.invalidate(service, entry, params);
+        if ( JedisUtil.isInited() )
+            JedisUtil.publish(CHANNEL_CACHE, new Object[] { service, entry, params });
+    }
+
     /** 得到统计数据 */
     public static Register.Statistics getStatistics(String service, String entry) {
         ConcurrentMap<String, Statistics> map = Statistics.Records.get(service);
@@ -585,6 +775,15 @@ public class Context {
         res_entry.success = statistics.success.get();
         res_entry.max_time = statistics.max_time.get();
         res_entry.req_id = statistics.request_id;
+        res_entry.cache_hit = statistics.cache_hit.get();
+        res_entry.cache_miss = statistics.cache_miss.get();
+        res_entry.cache_evict = statistics.cache_evict.get();
+        res_entry.coalesce = statistics.coalesce.get();
+        res_entry.retry = statistics.retry.get();
+        res_entry.hedge = statistics.hedge.get();
+        res_entry.hedge_win = statistics.hedge_win.get();
+        res_entry.p95_time = statistics.getP95();
+        res_entry.health = Health.getHealth(service, entry);
         return res_entry;
     }
     /** 得到统计数据 */
@@ -607,7 +806,9 @@ public class Context {
 
     //////////////////////////////////////////////////////////////////
 
-    String      ReqID;          // 请求ID
+    String      ReqID;          // 请求ID，需要时才生成
+    int         StreamID = 0;   // 连接内的流ID，用于关联请求结果，0表示使用请求ID（消息模式或容器不支持流ID且请求ID已确定）
+    byte[]      IDPrefix;       // 容器不支持流ID时连接的请求ID前缀，请求ID = 前缀 + 8位十六进制的流ID
     String      SeqID = null;   // 前置请求的ID
     Map<String,Object> Header;  // 请求头
     String      Service;        // 服务名字
@@ -618,14 +819,34 @@ public class Context {
     int         VerRelease = -1;    // 是否正式版本
 
     int Timeout = TimeoutRequest;   // 超时时间
+    long    Deadline = 0;           // 截止时间（毫秒时间戳），0表示只按Timeout计算
     boolean ConnectAlone = false;   // 是否单独连接
     boolean LogAccess = false;      // 是否强制记录Access日志
-
-    Filter[]    FilterInstances = null;
+    String  AffinityKey = null;     // 一致性哈希路由的键值
+    int     Hedge = 0;              // 对冲请求的延迟（毫秒数），0表示按路由配置
+    int     RouteHedge = 0;         // 路由配置的对冲请求延迟
+    String  ExcludeContainer = null;    // 对冲/重试请求需要避开的容器（原请求的目标容器）
+    boolean Hedged = false;         // 结果是否来自对冲请求
+    boolean Idempotent = false;     // 是否幂等的请求
+    int     Coalesce = -1;          // 是否合并进行中的相同请求，-1表示按路由配置
+    int     CacheTTL = 0;           // 路由配置的结果缓存时间
+    boolean Backpressure = false;   // 异步请求达到容器的并发限制时是否阻塞等待
+    String  Permit = null;          // 占用了并发数的容器
+    boolean Sent = false;           // 请求是否已经发出（只有发出的请求才计入容器的健康统计）
+    long    Probe = 0;              // 占用熔断试探请求的时间戳，0表示没有占用
+    boolean RouteIdempotent = false;    // 路由配置的服务接口是否幂等
+    boolean Retried = false;        // 是否已经重试
+    boolean Routed = false;         // 目标容器是否由路由选择（直接请求指定的容器时不重试）
+
+    Filter[]    FilterInstances = null;     // 请求过滤器（只读，可能在请求间共享）
+    int         FilterCount = 0;            // 已经执行了前置动作的过滤器数量
+    Statistics  Stat = null;                // 请求统计的实例
     String      TargetContainer = null;     // 目标容器
     Channel     TargetChannel = null;       // 目标连接
 
     ResultNotify    Notify = null;              // 收到结果的回调
+    io.netty.util.Timeout TimeoutTask = null;   // 异步请求的超时任务
+    io.netty.util.Timeout HedgeTask = null;     // 对冲请求的定时任务
     long            RequestTime = 0;            // 发出请求的时间戳
     long            ResultTime = 0;             // 处理结果的时间戳
     boolean         ResultStatus = false;       // 是否已经结束
@@ -637,20 +858,16 @@ public class Context {
     boolean doBefore() {
         if ( FilterInstances == null )
             return false;
-        for ( int i = 0; i < FilterInstances.length; i ++ ) {
-            if ( ResultStatus ) {
-                FilterInstances[i] = null;
-                continue;
-            }
-
+        for ( ; FilterCount < FilterInstances.length && !ResultStatus; FilterCount ++ ) {
+            Filter filter = FilterInstances[FilterCount];
             try {
-                int res = FilterInstances[i].before(this);
+                int res = filter.before(this);
                 if ( res < 0 )
-                    setResult(ErrorCode.FILTER, "break by filter <" + FilterInstances[i].getClass().getCanonicalName() + ">");
+                    setResult(ErrorCode.FILTER, "break by filter <" + filter.getClass().getCanonicalName() + ">");
                 else if ( res > 0 )
                     setResult(ErrorCode.OK, Context.getMockData(Service, (String)Param[0]));
             } catch (Exception e) {
-                setResult(ErrorCode.FILTER, "filter <" + FilterInstances[i].getClass().getCanonicalName() + "> error: " + e.getMessage());
+                setResult(ErrorCode.FILTER, "filter <" + filter.getClass().getCanonicalName() + "> error: " + e.getMessage());
             }
         }
         return ResultStatus;
@@ -658,9 +875,14 @@ public class Context {
     /* 处理请求过滤器的后置动作 */
     void doAfter() {
         if ( FilterInstances != null )
-            for ( int i = FilterInstances.length - 1; i >= 0; i -- )
-                if ( FilterInstances[i] != null )
-                    try { FilterInstances[i].after(this); } catch (Exception e) { log(LogUtil.ERROR, Service + "#" + Param[0] + "() after", e); }
+            for ( int i = FilterCount - 1; i >= 0; i -- )
+                try { FilterInstances[i].after(this); } catch (Exception e) { log(LogUtil.ERROR, Service + "#" + Param[0] + "() after", e); }
+    }
+    /* 获得请求统计的实例 */
+    Statistics getStat() {
+        if ( Stat == null )
+            Stat = Statistics.getStatistics(Service, (String)Param[0]);
+        return Stat;
     }
 
     /* 发送UBSI请求 */
@@ -685,30 +907,246 @@ public class Context {
         ResultTime = RequestTime;
         ResultStatus = false;
 
+        if ( !discard && !message ) {
+            // 按超时时间及继承的截止时间计算本次请求的截止时间，剩余时间不足Timeout时缩短等待
+            long deadline = Timeout > 0 ? RequestTime + Timeout * 1000L : 0;
+            if ( Deadline > 0 ) {
+                if ( Deadline <= RequestTime ) {
+                    setResult(ErrorCode.EXPIRED, "request deadline exceeded");
+                    return true;
+                }
+                if ( deadline == 0 || Deadline < deadline ) {
+                    deadline = Deadline;
+                    Timeout = (int)((Deadline - RequestTime + 999) / 1000);
+                }
+            }
+            Deadline = deadline;
+        }
+
         TargetChannel = ch;
         if ( doBefore() ) {
             doAfter();
             return true;
         }
 
-        if ( IOData.write(ch, new Object[] { ReqID, Header, Service, Param, flag }) ) {
-            Statistics.send(Service, (String)Param[0]);
+        if ( !discard ) {
+            long wait = Notify == null || Backpressure ? (Timeout == 0 ? 0 : Math.max(Timeout * 1000L - (System.currentTimeMillis() - RequestTime), 1)) : -1;
+            if ( !Limiter.acquire(TargetContainer, wait) ) {
+                setResult(ErrorCode.OVERLOAD, "concurrency limit of " + TargetContainer);
+                return true;
+            }
+            Permit = TargetContainer;
+        }
+        String reply = message ? ReplyChannel : null;   // 消息模式的结果只发送到本Consumer的回复频道
+        // 直接编码请求数据：[ id, header, service, [entry, params...], flag ]
+        ByteBuf buf = IOData.buffer(ch);
+        try {
+            Codec.encodeArray(buf, 5);
+            if ( message || StreamID == 0 )
+                Codec.encode(buf, getReqID());      // 消息模式需要全局唯一的请求ID
+            else if ( IDPrefix != null )
+                Codec.encodeHexID(buf, IDPrefix, StreamID);     // 不支持流ID的容器按字符串读取请求ID，直接编码不创建String
+            else
+                Codec.encodeInt(buf, StreamID);
+            encodeHeader(buf, reply);
+            Codec.encode(buf, Service);
+            Codec.encode(buf, Param);
+            Codec.encode(buf, flag);
+        } catch (Exception e) {
+            buf.release();
+            if ( Permit != null ) {
+                Limiter.release(Permit, ErrorCode.REQUEST, RequestTime, false);
+                Permit = null;
+            }
+            setResult(ErrorCode.REQUEST, "encode request error: " + e.getMessage());
+            return true;
+        }
+        Sent = true;
+        if ( TargetContainer != null )
+            Probe = Health.probe(TargetContainer, Service, (String) Param[0]);
+        if ( IOData.write(ch, buf) ) {
+            getStat().request.incrementAndGet();
+            if ( ExcludeContainer == null )
+                Retry.deposit(Service);     // 对冲/重试请求不增加重试预算
             if (LogAccess)
-                log(LogUtil.ACCESS, 2, "request", new LogBody.Request(ReqID, SeqID, Service, (String) Param[0], flag));
+                log(LogUtil.ACCESS, 2, "request", new LogBody.Request(getReqID(), SeqID, Service, (String) Param[0], flag));
             return false;
         }
+        if ( Permit != null ) {
+            Limiter.release(Permit, ErrorCode.CHANNEL, RequestTime, false);
+            Permit = null;
+        }
         setResult(ErrorCode.CHANNEL, "send request error");
         return true;
     }
+    /* 编码请求头，附加的传输项直接写在Header的数据之后（解码时后面的同名项覆盖前面的），不复制Header */
+    void encodeHeader(ByteBuf buf, String reply) {
+        boolean logID = LogAccess && StreamID != 0 && IDPrefix == null;     // 使用请求ID关联时容器已得到请求ID
+        int extra = (logID ? 1 : 0) + (reply != null ? 1 : 0) + (Deadline > 0 ? 1 : 0);
+        if ( extra == 0 ) {
+            Codec.encode(buf, Header);
+            return;
+        }
+        Map<String,Object> header = Header;
+        Codec.encodeMap(buf, (header == null ? 0 : header.size()) + extra);
+        if ( header != null )
+            for ( Map.Entry<String,Object> entry : header.entrySet() ) {
+                Codec.encode(buf, entry.getKey());
+                Codec.encode(buf, entry.getValue());
+            }
+        if ( logID ) {
+            Codec.encode(buf, HEADER_REQ_ID);
+            Codec.encode(buf, getReqID());
+        }
+        if ( reply != null ) {
+            Codec.encode(buf, HEADER_REQ_REPLY);
+            Codec.encode(buf, reply);
+        }
+        if ( Deadline > 0 ) {
+            Codec.encode(buf, HEADER_REQ_DEADLINE);
+            Codec.encode(buf, Deadline);
+        }
+    }
     /* 记录Access结果日志 */
     void logResult() {
         doAfter();
-        Statistics.recv(Service, (String)Param[0], ResultCode, ResultTime - RequestTime, ReqID);    // 返回统计
+        if ( Permit != null ) {
+            Limiter.release(Permit, ResultCode, RequestTime, !Hedged);
+            Permit = null;
+        }
+        if ( TargetContainer != null && Sent && !Hedged ) {   // 对冲请求的副本已经记录了自己的结果
+            long time = ResultTime - RequestTime;
+            Router.updateLatency(TargetContainer, time);
+            Health.record(TargetContainer, Service, (String)Param[0], ResultCode, time);
+        } else if ( Probe > 0 )
+            Health.release(TargetContainer, Service, (String)Param[0], Probe);
+        Statistics.recv(getStat(), ResultCode, ResultTime - RequestTime, this);    // 返回统计
+        if ( Tailer != null && Tailer.get(TAILER_CACHE) != null )
+            Cache.Services.add(Service);    // 容器提示了缓存时间，此后的请求都检查缓存
         if ( LogAccess )
-            log(LogUtil.ACCESS, 2, "result", new LogBody.Result(ReqID, Service, (String) Param[0], ResultCode, ResultData, ResultTime - RequestTime));
+            log(LogUtil.ACCESS, 2, "result", new LogBody.Result(getReqID(), Service, (String) Param[0], ResultCode, ResultData, ResultTime - RequestTime));
+    }
+    /* 获得对冲请求的延迟（毫秒数），0表示不发送对冲请求 */
+    long getHedgeDelay() {
+        if ( ExcludeContainer != null )
+            return 0;   // 对冲请求的副本不再对冲
+        int hedge = Hedge != 0 ? Hedge : RouteHedge;
+        long delay = hedge > 0 ? hedge : (hedge < 0 ? Statistics.getP95(Service, (String)Param[0]) : 0);
+        if ( delay <= 0 || (Timeout > 0 && delay >= Timeout * 1000L) )
+            return 0;
+        return delay;
+    }
+    /* 生成对冲/重试请求的副本，exclude为需要避开的容器 */
+    Context copy(String exclude) throws Exception {
+        Context copy = request(Service, Param);
+        copy.SeqID = SeqID;
+        copy.Header = Header;
+        copy.VerMin = VerMin;
+        copy.VerMax = VerMax;
+        copy.VerRelease = VerRelease;
+        copy.Timeout = Timeout;
+        copy.Deadline = Deadline;       // 对冲/重试请求不延长原请求的截止时间
+        copy.ConnectAlone = ConnectAlone;
+        copy.LogAccess = LogAccess;
+        copy.Idempotent = Idempotent;
+        copy.ExcludeContainer = exclude;
+        return copy;
+    }
+    /* 连接容器失败时选择其他容器，请求尚未发出，不消耗重试预算 */
+    Object[] reroute(ResultException e) throws Exception {
+        if ( e.Code != ErrorCode.CONNECT || ExcludeContainer != null )
+            throw e;
+        Object[] server;
+        ExcludeContainer = TargetContainer;
+        try {
+            server = getRouter();
+        } catch (Exception x) {
+            throw e;
+        } finally {
+            ExcludeContainer = null;
+        }
+        if ( server.length == 1 )
+            throw e;
+        Retried = true;
+        getStat().retry.incrementAndGet();
+        return server;
+    }
+    /* 生成重试请求的副本：幂等的请求发生连接中断/过载/停机错误，有其他可用的容器且未超出重试预算，否则返回null */
+    Context retryCopy(int code) {
+        if ( Retried || !Routed || ExcludeContainer != null || !isIdempotent() )
+            return null;
+        if ( code != ErrorCode.CHANNEL && code != ErrorCode.OVERLOAD && code != ErrorCode.SHUTDOWN )
+            return null;
+        try {
+            Context copy = copy(TargetContainer);
+            if ( copy.getRouter().length == 1 || !Retry.acquire(Service) )
+                return null;
+            Retried = true;
+            getStat().retry.incrementAndGet();
+            return copy;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    /* 使用重试请求的结果 */
+    synchronized void adopt(Context copy, int code, Object data) {
+        TargetContainer = copy.TargetContainer;
+        TargetChannel = copy.TargetChannel;
+        ResultTime = System.currentTimeMillis();
+        ResultCode = code;
+        ResultData = data;
+        Tailer = copy.Tailer;
+    }
+    /* 异步请求失败时向其他容器重试，返回false表示不重试 */
+    boolean retryAsync() {
+        final Context copy = retryCopy(ResultCode);
+        if ( copy == null )
+            return false;
+        CallbackExecutor.execute(() -> {     // 避免在I/O线程中建立连接
+            try {
+                copy.callAsync((code, data) -> {
+                    adopt(copy, code, data);
+                    resultCallback();
+                }, false);
+            } catch (Exception e) {
+                resultCallback();
+            }
+        });
+        return true;
+    }
+    /* 获得结果缓存的键值，不使用缓存时返回null */
+    ByteBuffer getCacheKey() {
+        if ( CacheSize <= 0 || ExcludeContainer != null )
+            return null;
+        Register.Router router = Router.getLocalRouter(this);
+        CacheTTL = router == null ? 0 : router.Cache;
+        if ( CacheTTL <= 0 && !Cache.Services.contains(Service) )
+            return null;
+        return SingleFlight.getKey(this);
+    }
+    /* 合并的请求得到结果 */
+    void follow(int code, Object data, Context leader) {
+        synchronized (this) {
+            if ( ResultStatus )
+                return;
+            setResult(code, data);
+            Tailer = leader.Tailer == null ? null : new HashMap<>(leader.Tailer);
+            TargetContainer = leader.TargetContainer;
+            if ( Notify == null ) {
+                notifyAll();
+                return;
+            }
+        }
+        try {
+            Notify.callback(code, data);
+        } catch (Exception e) {
+            log(LogUtil.ERROR, Service + "#" + Param[0] + "() notify", e);
+        }
     }
     /* 回调UBSI结果 */
     void resultCallback() {
+        if ( ResultCode != ErrorCode.OK && retryAsync() )
+            return;
         try {
             Notify.callback(ResultCode, ResultData);
         } catch (Exception e) {
@@ -728,6 +1166,8 @@ public class Context {
 
     /** 获得请求ID */
     public String getReqID() {
+        if ( ReqID == null )
+            ReqID = IDPrefix != null && StreamID != 0 ? new String(IDPrefix) + String.format("%08x", StreamID) : Util.getUUID();
         return ReqID;
     }
     /** 获得服务名字 */
@@ -833,6 +1273,15 @@ public class Context {
     public int getTimeout() {
         return Timeout;
     }
+    /** 设置请求的截止时间(毫秒时间戳)，0表示只按超时时间计算，剩余时间不足超时时间时按剩余时间等待 */
+    public Context setDeadline(long deadline) {
+        Deadline = deadline;
+        return this;
+    }
+    /** 获取请求的截止时间(毫秒时间戳)，请求发出后为实际生效的截止时间，0表示不限 */
+    public long getDeadline() {
+        return Deadline;
+    }
     /** 设置是否使用独立连接发送请求（适用于较大数据量传输的请求），缺省为false */
     public Context setConnectAlone(boolean alone) {
         ConnectAlone = alone;
@@ -842,11 +1291,67 @@ public class Context {
     public boolean isConnectAlone() {
         return ConnectAlone;
     }
+    /** 设置一致性哈希路由的键值（路由配置的负载均衡策略为"hash"时有效），相同键值的请求会路由到同一个容器 */
+    public Context setAffinityKey(String key) {
+        AffinityKey = key;
+        return this;
+    }
+    /** 获取一致性哈希路由的键值 */
+    public String getAffinityKey() {
+        return AffinityKey;
+    }
+    /** 设置对冲请求的延迟（毫秒数），请求发出后超过此时间未返回则向另一个容器发送副本，取先返回的正常结果；-1表示使用接口最近的P95响应时间，0表示按路由配置（缺省）；只应用于只读（readonly）的服务接口 */
+    public Context setHedge(int delay) {
+        Hedge = delay;
+        return this;
+    }
+    /** 获取对冲请求的延迟（毫秒数） */
+    public int getHedge() {
+        return Hedge;
+    }
+    /** 请求结果是否来自对冲请求 */
+    public boolean isHedged() {
+        return Hedged;
+    }
+    /** 设置是否幂等的请求（只读的服务接口也是幂等的），幂等的请求在连接中断/过载/停机时可以向其他容器重试，缺省按路由配置 */
+    public Context setIdempotent(boolean idempotent) {
+        Idempotent = idempotent;
+        return this;
+    }
+    /** 是否幂等的请求 */
+    public boolean isIdempotent() {
+        return Idempotent || RouteIdempotent;
+    }
+    /** 设置是否合并进行中的相同请求（服务/版本/接口/参数都相同，不比较请求头），合并的请求不再发送而是共享进行中请求的结果，只应用于只读（readonly）的服务接口，缺省按路由配置 */
+    public Context setCoalesce(boolean coalesce) {
+        Coalesce = coalesce ? 1 : 0;
+        return this;
+    }
+    /** 是否合并进行中的相同请求 */
+    public boolean isCoalesce() {
+        if ( ExcludeContainer != null )
+            return false;   // 对冲/重试请求不合并
+        if ( Coalesce >= 0 )
+            return Coalesce > 0;
+        Register.Router router = Router.getLocalRouter(this);
+        return router != null && router.Coalesce;
+    }
+    /** 设置异步请求达到容器的并发限制时是否阻塞调用者（最长为请求的超时时间），缺省为false（立即以过载错误回调）；在I/O线程或结果回调线程中发出的请求不会阻塞 */
+    public Context setBackpressure(boolean backpressure) {
+        Backpressure = backpressure;
+        return this;
+    }
+    /** 请求结果是否来自重试 */
+    public boolean isRetried() {
+        return Retried;
+    }
     /** 获得路由结果，成功返回["host",port]，返回[data]表示仿真数据 */
     public Object[] getRouter() throws Exception {
-        Object[] res = Router.getServer(Service, (String)Param[0], VerMin, VerMax, VerRelease);
-        if ( res.length > 1 )
+        Object[] res = Router.getServer(this);
+        if ( res.length > 1 ) {
             TargetContainer = (String)res[0] + "#" + res[1];
+            Routed = true;
+        }
         return res;
     }
     /** 获得请求的目标容器 */
@@ -888,30 +1393,31 @@ public class Context {
     public Object direct(String host, int port) throws Exception {
         ConnectAlone = true;
         TargetContainer = host + "#" + port;
-        Channel ch = IOHandler.connect(host, port);
+        String addr = TargetContainer;
+        Channel ch = Connector.getAlone(host, port);
         Notify = null;
-        Connector.DirectContext.put(ch, this);
+        try {
+            Connector.putChannelContext(ch, this, true);
+        } catch (Exception e) {
+            Connector.releaseAlone(addr, ch, ErrorCode.CHANNEL);
+            throw e;
+        }
         synchronized (this) {
-            if ( sendRequest(ch, false, false) ) {
-                Connector.DirectContext.remove(ch);
-                ch.close();
-                if ( ResultCode != ErrorCode.OK )
-                    throw new ResultException(ResultCode, (String)ResultData);
-                return ResultData;
-            }
-            try {
-                if ( Timeout == 0 )
-                    this.wait();
-                else
-                    this.wait(Timeout * 1000);
-            } catch(Exception e) {}
-            if ( !ResultStatus ) {
-                setResult(ErrorCode.TIMEOUT, "request timeout");
-                logResult();
+            if ( !sendRequest(ch, false, false) ) {
+                try {
+                    if ( Timeout == 0 )
+                        this.wait();
+                    else
+                        this.wait(Timeout * 1000);
+                } catch(Exception e) {}
+                if ( !ResultStatus ) {
+                    setResult(ErrorCode.TIMEOUT, "request timeout");
+                    logResult();
+                }
             }
         }
-        Connector.DirectContext.remove(ch);
-        ch.close();
+        Connector.putChannelContext(ch, this, false);
+        Connector.releaseAlone(addr, ch, ResultCode);
         if ( ResultCode != ErrorCode.OK )
             throw new ResultException(ResultCode, (String)ResultData);
         return ResultData;
@@ -923,31 +1429,247 @@ public class Context {
             throw new ResultException(ErrorCode.MESSAGE, "message mechanism invalid");
         ConnectAlone = true;
         TargetContainer = host + "#" + port;
-        Channel ch = IOHandler.connect(host, port);
+        String addr = TargetContainer;
+        Channel ch = Connector.getAlone(host, port);
+        boolean release = notify == null || message;    // 不通过连接返回结果，发送后即可回收连接
+        if ( !release ) {
+            ResultNotify origin = notify;
+            notify = (code, data) -> {
+                Connector.releaseAlone(addr, ch, code);
+                origin.callback(code, data);
+            };
+        }
         if ( notify != null ) {
             Notify = notify;
             if ( message )
-                Connector.MessageContext.put(ReqID, this);
-            else
-                Connector.DirectContext.put(ch, this);
+                Connector.MessageContext.put(getReqID(), this);
+            else {
+                try {
+                    Connector.putChannelContext(ch, this, true);
+                } catch (Exception e) {
+                    Connector.releaseAlone(addr, ch, ErrorCode.CHANNEL);
+                    throw e;
+                }
+            }
         }
         if ( sendRequest(ch, notify == null, message) ) {
-            try { ch.close(); } catch (Exception e) {}
+            if ( release )
+                Connector.releaseAlone(addr, ch, ResultCode);
             if ( notify != null ) {
                 if ( message )
-                    Connector.MessageContext.remove(ReqID);
+                    Connector.MessageContext.remove(getReqID());
                 else
-                    Connector.DirectContext.remove(ch);
+                    Connector.putChannelContext(ch, this, false);
                 notify.callback(ResultCode, ResultData);
             }
             return;
         }
-        if ( notify == null || message )
-            ch.close();
+        if ( release )
+            Connector.releaseAlone(addr, ch, ErrorCode.OK);
+        if ( notify != null )
+            Connector.addTimeout(this, ch, message);
+    }
+
+    /* 生成完成CompletableFuture的回调 */
+    static ResultNotify futureNotify(final CompletableFuture<Object> future) {
+        final Executor executor = CallbackExecutor;
+        return (int code, Object result) -> {
+            try {
+                executor.execute(() -> completeFuture(future, code, result));
+            } catch (RejectedExecutionException e) {
+                completeFuture(future, code, result);
+            }
+        };
+    }
+    /* 完成CompletableFuture */
+    static void completeFuture(CompletableFuture<Object> future, int code, Object result) {
+        if ( code == ErrorCode.OK )
+            future.complete(result);
+        else
+            future.completeExceptionally(new ResultException(code, (String)result));
+    }
+
+    /** 直接向指定的container发送请求（异步，返回CompletableFuture） */
+    public CompletableFuture<Object> directFuture(String host, int port) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        try {
+            directAsync(host, port, futureNotify(future), false);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    /** 直接向指定的container发送请求（异步，返回CompletableFuture，结果转换为指定的数据类型） */
+    public <T> CompletableFuture<T> directFuture(String host, int port, Type type, Type... typeArguments) {
+        return directFuture(host, port).thenApply(res -> Codec.toType(res, type, typeArguments));
+    }
+
+    /** 向提供服务的全部容器广播请求（同步），返回各个容器（"host#port"）的结果，失败的容器的结果为ResultException；超时时返回部分结果 */
+    public Map<String, Object> broadcast() throws Exception {
+        try {
+            return broadcastFuture().get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof Exception )
+                throw (Exception)cause;
+            throw e;
+        }
+    }
+    /** 向提供服务的全部容器广播请求（异步，返回CompletableFuture），请求超时时间为全部容器的期限 */
+    public CompletableFuture<Map<String, Object>> broadcastFuture() {
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        List<String> addrs = Router.getContainers(Service, VerMin, VerMax, VerRelease);
+        if ( addrs.isEmpty() ) {
+            future.completeExceptionally(new ResultException(ErrorCode.ROUTER, "no container for broadcast " + Service));
+            return future;
+        }
+        Broadcast broadcast = new Broadcast(addrs, future);
+        if ( Timeout > 0 && IOHandler.IOWheel != null )
+            broadcast.Deadline = IOHandler.IOWheel.newTimeout(t -> broadcast.finish(), Timeout, TimeUnit.SECONDS);
+        for ( String addr : addrs ) {
+            int split = addr.lastIndexOf('#');
+            try {
+                Context ctx = copy(null);
+                ctx.TargetContainer = addr;
+                Object[] server = new Object[] { addr.substring(0, split), Integer.parseInt(addr.substring(split + 1)) };
+                ResultNotify notify = (code, data) -> broadcast.put(addr, code, data);
+                if ( ConnectAlone )
+                    ctx.directAsync((String)server[0], (Integer)server[1], notify, false);
+                else
+                    ctx.connectAsync(server, notify, false, false);
+            } catch (ResultException e) {
+                broadcast.put(addr, e.Code, e.getMessage());
+            } catch (Exception e) {
+                broadcast.put(addr, ErrorCode.EXCEPTION, e.toString());
+            }
+        }
+        return future;
+    }
+    /* 广播请求的结果收集 */
+    static class Broadcast {
+        final List<String> Addrs;                       // 广播的容器
+        final Map<String, Object> Results = new HashMap<>();    // 已经得到的结果
+        final CompletableFuture<Map<String, Object>> Future;
+        volatile io.netty.util.Timeout Deadline;        // 全部请求的期限
+        boolean Finished = false;
+
+        Broadcast(List<String> addrs, CompletableFuture<Map<String, Object>> future) {
+            Addrs = addrs;
+            Future = future;
+        }
+
+        /* 得到一个容器的结果 */
+        void put(String addr, int code, Object data) {
+            synchronized (this) {
+                if ( Finished )
+                    return;
+                Results.put(addr, code == ErrorCode.OK ? data : new ResultException(code, (String)data));
+                if ( Results.size() < Addrs.size() )
+                    return;
+            }
+            finish();
+        }
+        /* 结束广播，未得到结果的容器按超时处理 */
+        void finish() {
+            Map<String, Object> res;
+            synchronized (this) {
+                if ( Finished )
+                    return;
+                Finished = true;
+                for ( String addr : Addrs )
+                    if ( !Results.containsKey(addr) )
+                        Results.put(addr, new ResultException(ErrorCode.TIMEOUT, "request timeout"));
+                res = Results;
+            }
+            if ( Deadline != null )
+                Deadline.cancel();
+            try {
+                CallbackExecutor.execute(() -> Future.complete(res));
+            } catch (RejectedExecutionException e) {
+                Future.complete(res);
+            }
+        }
+    }
+
+    /** 异步方式请求UBSI服务，返回CompletableFuture */
+    public CompletableFuture<Object> callFuture() {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        try {
+            callAsync(futureNotify(future), false);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    /** 异步方式请求UBSI服务，返回CompletableFuture，结果转换为指定的数据类型 */
+    public <T> CompletableFuture<T> callFuture(Type type, Type... typeArguments) {
+        return callFuture().thenApply(res -> Codec.toType(res, type, typeArguments));
     }
 
     /** 同步方式请求UBSI服务 */
     public Object call() throws Exception {
+        ByteBuffer key = getCacheKey();
+        if ( key != null && Cache.get(key, this) )
+            return ResultData;
+        Object res = callCoalesce(key);
+        if ( key != null && RequestTime > 0 )   // 合并的请求由实际发送的请求保存缓存
+            Cache.put(key, this, res, CacheTTL);
+        return res;
+    }
+    /* 同步请求，合并进行中的相同请求 */
+    Object callCoalesce(ByteBuffer key) throws Exception {
+        if ( !isCoalesce() )
+            return callRetry();
+        if ( key == null )
+            key = SingleFlight.getKey(this);
+        SingleFlight flight = null;
+        Notify = null;
+        synchronized (this) {   // 合并的请求在wait()之前不会得到结果
+            boolean follow = SingleFlight.join(key, this);
+            if ( !follow && (flight = SingleFlight.start(key)) == null )
+                follow = SingleFlight.join(key, this);
+            if ( follow ) {
+                try {
+                    if ( Timeout == 0 )
+                        this.wait();
+                    else
+                        this.wait(Timeout * 1000);
+                } catch (Exception e) {}
+                if ( !ResultStatus )
+                    setResult(ErrorCode.TIMEOUT, "request timeout");
+                if ( ResultCode != ErrorCode.OK )
+                    throw new ResultException(ResultCode, (String)ResultData);
+                return ResultData;
+            }
+        }
+        if ( flight == null )
+            return callRetry();
+        try {
+            Object res = callRetry();
+            flight.complete(ErrorCode.OK, res, this);
+            return res;
+        } catch (Exception e) {
+            flight.complete(e, this);
+            throw e;
+        }
+    }
+    /* 同步请求，失败时按重试预算重试 */
+    Object callRetry() throws Exception {
+        try {
+            return callOnce();
+        } catch (ResultException e) {
+            Context copy = retryCopy(e.Code);
+            if ( copy == null )
+                throw e;
+            try {
+                return copy.call();
+            } finally {
+                adopt(copy, copy.ResultCode, copy.ResultData);
+            }
+        }
+    }
+    /* 同步请求一次 */
+    Object callOnce() throws Exception {
         Object[] server = getRouter();
         if ( server.length == 1 )
             return server[0];
@@ -956,9 +1678,7 @@ public class Context {
             try {
                 return direct((String) server[0], (Integer) server[1]);
             } catch (ResultException e) {
-                if (e.Code != ErrorCode.CONNECT)
-                    throw e;
-                server = getRouter();
+                server = reroute(e);
                 return direct((String) server[0], (Integer) server[1]);
             }
         }
@@ -967,9 +1687,7 @@ public class Context {
         try {
             ch = Connector.get((String)server[0], (Integer)server[1]);
         } catch (ResultException e) {
-            if (e.Code != ErrorCode.CONNECT)
-                throw e;
-            server = getRouter();
+            server = reroute(e);
             ch = Connector.get((String)server[0], (Integer)server[1]);
         }
 
@@ -982,6 +1700,7 @@ public class Context {
                     throw new ResultException(ResultCode, (String)ResultData);
                 return ResultData;
             }
+            Connector.addHedge(this, ch);
             try {
                 if ( Timeout == 0 )
                     this.wait();
@@ -1001,6 +1720,55 @@ public class Context {
 
     /** 异步方式请求UBSI服务 */
     public void callAsync(ResultNotify notify, boolean message) throws Exception {
+        if ( notify == null || message ) {
+            callAsyncOnce(notify, message);
+            return;
+        }
+        ByteBuffer key = getCacheKey();
+        if ( key != null ) {
+            if ( Cache.get(key, this) ) {
+                notify.callback(ResultCode, ResultData);
+                return;
+            }
+            final ResultNotify origin = notify;
+            notify = (code, data) -> {
+                if ( code == ErrorCode.OK && RequestTime > 0 )
+                    Cache.put(key, this, data, CacheTTL);
+                origin.callback(code, data);
+            };
+        }
+        callAsyncCoalesce(key, notify);
+    }
+    /* 异步请求，合并进行中的相同请求 */
+    void callAsyncCoalesce(ByteBuffer key, ResultNotify notify) throws Exception {
+        if ( !isCoalesce() ) {
+            callAsyncOnce(notify, false);
+            return;
+        }
+        if ( key == null )
+            key = SingleFlight.getKey(this);
+        Notify = notify;
+        if ( SingleFlight.join(key, this) )
+            return;
+        SingleFlight flight = SingleFlight.start(key);
+        if ( flight == null ) {
+            if ( SingleFlight.join(key, this) )
+                return;
+            callAsyncOnce(notify, false);
+            return;
+        }
+        try {
+            callAsyncOnce((code, data) -> {
+                flight.complete(code, data, this);
+                notify.callback(code, data);
+            }, false);
+        } catch (Exception e) {
+            flight.complete(e, this);
+            throw e;
+        }
+    }
+    /* 异步方式请求一次 */
+    void callAsyncOnce(ResultNotify notify, boolean message) throws Exception {
         if ( notify != null && message && !JedisUtil.isInited() )
             throw new ResultException(ErrorCode.MESSAGE, "message mechanism invalid");
 
@@ -1015,39 +1783,86 @@ public class Context {
             try {
                 directAsync((String) server[0], (Integer) server[1], notify, message);
             } catch (ResultException e) {
-                if (e.Code != ErrorCode.CONNECT)
-                    throw e;
-                server = getRouter();
+                server = reroute(e);
                 directAsync((String) server[0], (Integer) server[1], notify, message);
             }
             return;
         }
 
-        Channel ch = null;
+        connectAsync(server, notify, message, true);
+    }
+    /* 从连接池获得连接后发送异步请求，连接尚未建立时在连接完成后发送，不阻塞调用线程 */
+    void connectAsync(Object[] server, ResultNotify notify, boolean message, boolean reroute) throws Exception {
+        Connector.Pool pool = Connector.getPool((String)server[0], (Integer)server[1]);
+        Channel ch = pool.select();
+        if ( ch != null ) {
+            sendAsync(ch, notify, message);
+            return;
+        }
+        CompletableFuture<Channel> future = pool.connecting();
+        if ( future.isDone() ) {
+            try {
+                ch = Connector.getChannel(future);
+            } catch (ResultException e) {
+                if ( !reroute )
+                    throw e;
+                connectAsync(reroute(e), notify, message, false);
+                return;
+            }
+            sendAsync(ch, notify, message);
+            return;
+        }
+        future.whenComplete((channel, x) -> {
+            try {
+                CallbackExecutor.execute(() -> connected(channel, x, notify, message, reroute));   // 避免在I/O线程中发送请求
+            } catch (RejectedExecutionException e) {
+                connected(channel, x, notify, message, reroute);
+            }
+        });
+    }
+    /* 连接完成后发送异步请求，失败时通过回调返回错误 */
+    void connected(Channel ch, Throwable x, ResultNotify notify, boolean message, boolean reroute) {
         try {
-            ch = Connector.get((String)server[0], (Integer)server[1]);
-        } catch (ResultException e) {
-            if (e.Code != ErrorCode.CONNECT)
-                throw e;
-            server = getRouter();
-            ch = Connector.get((String)server[0], (Integer)server[1]);
+            if ( x == null )
+                sendAsync(ch, notify, message);
+            else if ( reroute && x instanceof ResultException )
+                connectAsync(reroute((ResultException)x), notify, message, false);
+            else
+                throw x;
+        } catch (Throwable e) {
+            if ( notify == null )
+                return;
+            int code = e instanceof ResultException ? ((ResultException)e).Code : ErrorCode.EXCEPTION;
+            try {
+                notify.callback(code, e.getMessage());
+            } catch (Exception n) {
+                log(LogUtil.ERROR, Service + "#" + Param[0] + "() notify", n);
+            }
         }
-
+    }
+    /* 通过连接池中的连接发送异步请求 */
+    void sendAsync(Channel ch, ResultNotify notify, boolean message) throws Exception {
         if ( notify != null ) {
             Notify = notify;
             if (message)
-                Connector.MessageContext.put(ReqID, this);
+                Connector.MessageContext.put(getReqID(), this);
             else
                 Connector.putChannelContext(ch, this, true);
         }
         if ( sendRequest(ch, notify == null, message) ) {
             if ( notify != null ) {
                 if (message)
-                    Connector.MessageContext.remove(ReqID);
+                    Connector.MessageContext.remove(getReqID());
                 else
                     Connector.putChannelContext(ch, this, false);
                 notify.callback(ResultCode, ResultData);
             }
+            return;
+        }
+        if ( notify != null ) {
+            Connector.addTimeout(this, ch, message);
+            if ( !message )
+                Connector.addHedge(this, ch);
         }
     }
 
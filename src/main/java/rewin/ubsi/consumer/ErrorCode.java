@@ -32,6 +32,7 @@ public class ErrorCode {
     public final static int BREAK = 9;          // 接口超时，熔断
     public final static int TRANSACTION = 10;   // 事务处理失败
     public final static int PARAMS = 11;        // 参数错误
+    public final static int EXPIRED = 12;       // 请求已过截止时间
     public final static int ERROR = 100;        // 自定义错误
 
     public final static int REQUEST = -1;       // 请求参数异常
@@ -0,0 +1,338 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import rewin.ubsi.common.LogUtil;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * UBSI Consumer对容器的健康统计及熔断
+ */
+class Health {
+
+    final static int WINDOW = 10;           // 统计窗口的桶数，每桶1秒
+    final static int MIN_REQUEST = 20;      // 统计窗口内的请求数量达到此值才进行判断
+    final static int MAX_BACKOFF = 8;       // 连续熔断时熔断时间的最大倍数
+    final static long OUTLIER_MIN = 10;     // 平均响应时间低于此值（毫秒数）时不剔除
+
+    final static int CLOSED = 0;            // 正常
+    final static int OPEN = 1;              // 熔断
+    final static int HALF_OPEN = 2;         // 熔断结束，等待试探请求的结果
+
+    long    Second = 0;                     // 当前桶的时间（秒数）
+    long[]  Requests = new long[WINDOW];    // 各个桶的请求数量
+    long[]  Errors = new long[WINDOW];      // 各个桶的错误数量
+    long[]  Times = new long[WINDOW];       // 各个桶的响应时间合计（毫秒数）
+
+    int     State = CLOSED;                 // 熔断状态
+    int     Ejections = 0;                  // 连续熔断的次数
+    long    OpenUntil = 0;                  // 熔断的截止时间戳
+    long    ProbeTime = 0;                  // 发出试探请求的时间戳，0表示没有试探请求
+
+    ConcurrentMap<String, ConcurrentMap<String, Health>> Entries = new ConcurrentHashMap<>();  // 容器上各个服务接口的健康统计
+
+    static ConcurrentMap<String, Health> Containers = new ConcurrentHashMap<>();    // 各个容器的健康统计
+
+    /* 滚动统计窗口 */
+    void roll(long t) {
+        long sec = t / 1000;
+        if ( sec <= Second )
+            return;
+        long n = Math.min(sec - Second, WINDOW);
+        for ( long i = 1; i <= n; i ++ ) {
+            int index = (int)((Second + i) % WINDOW);
+            Requests[index] = 0;
+            Errors[index] = 0;
+            Times[index] = 0;
+        }
+        Second = sec;
+    }
+
+    /* 统计窗口内的 [ 请求数量, 错误数量, 响应时间合计 ] */
+    synchronized long[] sum(long t) {
+        roll(t);
+        long[] res = new long[3];
+        for ( int i = 0; i < WINDOW; i ++ ) {
+            res[0] += Requests[i];
+            res[1] += Errors[i];
+            res[2] += Times[i];
+        }
+        return res;
+    }
+
+    /* 开始熔断，熔断时间随连续熔断的次数加倍 */
+    void open(long t) {
+        Ejections ++;
+        State = OPEN;
+        OpenUntil = t + Context.BreakerTime * 1000L * Math.min(1 << Math.min(Ejections - 1, 30), MAX_BACKOFF);
+        ProbeTime = 0;
+    }
+
+    /* 恢复正常，清除统计数据 */
+    void close() {
+        State = CLOSED;
+        Ejections = 0;
+        ProbeTime = 0;
+        Arrays.fill(Requests, 0);
+        Arrays.fill(Errors, 0);
+        Arrays.fill(Times, 0);
+    }
+
+    /* 记录一个请求结果，返回状态是否变化 */
+    synchronized boolean record(boolean error, long time, long t) {
+        roll(t);
+        int index = (int)(Second % WINDOW);
+        Requests[index] ++;
+        if ( error )
+            Errors[index] ++;
+        Times[index] += time;
+
+        if ( State == HALF_OPEN ) {
+            if ( error )
+                open(t);
+            else
+                close();
+            return true;
+        }
+        if ( State == CLOSED && error && Context.BreakerError > 0 ) {
+            long requests = 0, errors = 0;
+            for ( int i = 0; i < WINDOW; i ++ ) {
+                requests += Requests[i];
+                errors += Errors[i];
+            }
+            if ( requests >= MIN_REQUEST && errors * 100 >= requests * Context.BreakerError ) {
+                open(t);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* 是否允许发送请求，熔断结束后每个熔断周期只允许一个试探请求，probe为true表示占用试探请求 */
+    synchronized boolean allow(long t, boolean probe) {
+        if ( State == CLOSED )
+            return true;
+        if ( State == OPEN ) {
+            if ( t < OpenUntil )
+                return false;
+            State = HALF_OPEN;
+        }
+        if ( ProbeTime > 0 && t - ProbeTime < Context.BreakerTime * 1000L )
+            return false;
+        if ( probe )
+            ProbeTime = t;
+        return true;
+    }
+
+    /* 熔断结束后占用试探请求，返回是否占用 */
+    synchronized boolean probe(long t) {
+        if ( State == CLOSED || !allow(t, false) )
+            return false;
+        ProbeTime = t;
+        return true;
+    }
+
+    /* 释放在t时占用的试探请求 */
+    synchronized void release(long t) {
+        if ( State == HALF_OPEN && ProbeTime == t )
+            ProbeTime = 0;
+    }
+
+    /* 状态的名字 */
+    synchronized String getState() {
+        return State == OPEN ? "open" : (State == HALF_OPEN ? "half-open" : "closed");
+    }
+
+    /* 是否计为容器的错误 */
+    static boolean isError(int code) {
+        switch (code) {
+            case ErrorCode.OVERLOAD:
+            case ErrorCode.SHUTDOWN:
+            case ErrorCode.NOSERVICE:
+            case ErrorCode.STOP:
+            case ErrorCode.EXCEPTION:
+            case ErrorCode.FORWARD:
+            case ErrorCode.BREAK:
+            case ErrorCode.CHANNEL:
+            case ErrorCode.TIMEOUT:
+                return true;
+        }
+        return false;
+    }
+
+    /* 获得健康统计的实例 */
+    static <K> Health getHealth(ConcurrentMap<K, Health> map, K key) {
+        Health health = map.get(key);
+        if ( health == null ) {
+            Health newHealth = new Health();
+            health = map.putIfAbsent(key, newHealth);
+            if ( health == null )
+                health = newHealth;
+        }
+        return health;
+    }
+
+    /* 记录请求结果 */
+    static void record(String addr, String service, String entry, int code, long time) {
+        long t = System.currentTimeMillis();
+        boolean error = isError(code);
+        Health ctn = getHealth(Containers, addr);
+        ConcurrentMap<String, Health> entries = ctn.Entries.get(service);
+        if ( entries == null ) {
+            ConcurrentMap<String, Health> newEntries = new ConcurrentHashMap<>();
+            entries = ctn.Entries.putIfAbsent(service, newEntries);
+            if ( entries == null )
+                entries = newEntries;
+        }
+        Health ent = getHealth(entries, entry);
+        if ( ctn.record(error, time, t) )
+            Context.log(LogUtil.WARN, "breaker-" + addr, ctn.getState());
+        if ( ent.record(error, time, t) )
+            Context.log(LogUtil.WARN, "breaker-" + addr, service + "#" + entry + "(): " + ent.getState());
+    }
+
+    /* 是否允许向容器发送请求（只检查，请求发出时才占用试探请求） */
+    static boolean allow(String addr, String service, String entry) {
+        Health ctn = Containers.get(addr);
+        if ( ctn == null )
+            return true;
+        long t = System.currentTimeMillis();
+        ConcurrentMap<String, Health> entries = ctn.Entries.get(service);
+        Health ent = entries == null ? null : entries.get(entry);
+        return (ent == null || ent.allow(t, false)) && ctn.allow(t, false);
+    }
+
+    /* 请求发出时占用熔断结束后的试探请求，返回占用的时间戳，0表示没有占用 */
+    static long probe(String addr, String service, String entry) {
+        Health ctn = Containers.get(addr);
+        if ( ctn == null )
+            return 0;
+        long t = System.currentTimeMillis();
+        ConcurrentMap<String, Health> entries = ctn.Entries.get(service);
+        Health ent = entries == null ? null : entries.get(entry);
+        boolean probe = ctn.probe(t);
+        if ( ent != null && ent.probe(t) )
+            probe = true;
+        return probe ? t : 0;
+    }
+
+    /* 占用了试探请求但没有记录结果时（如结果来自对冲请求的副本），释放试探请求 */
+    static void release(String addr, String service, String entry, long probe) {
+        Health ctn = Containers.get(addr);
+        if ( ctn == null )
+            return;
+        ctn.release(probe);
+        ConcurrentMap<String, Health> entries = ctn.Entries.get(service);
+        Health ent = entries == null ? null : entries.get(entry);
+        if ( ent != null )
+            ent.release(probe);
+    }
+
+    /* 定时检查：剔除响应时间明显偏高的容器（最多剔除一半），清理无请求的统计数据 */
+    static void check() {
+        long t = System.currentTimeMillis();
+        Map<String, Double> latency = new HashMap<>();
+        double total = 0;
+        int open = 0;
+        for ( Iterator<Map.Entry<String, Health>> iter = Containers.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, Health> item = iter.next();
+            Health ctn = item.getValue();
+            long[] sum = ctn.sum(t);
+            synchronized (ctn) {
+                if ( ctn.State != CLOSED ) {
+                    open ++;
+                    continue;
+                }
+            }
+            for ( Iterator<ConcurrentMap<String, Health>> its = ctn.Entries.values().iterator(); its.hasNext(); ) {
+                ConcurrentMap<String, Health> entries = its.next();
+                for ( Iterator<Health> it = entries.values().iterator(); it.hasNext(); ) {
+                    Health ent = it.next();
+                    synchronized (ent) {
+                        if ( ent.State == CLOSED && ent.sum(t)[0] == 0 )
+                            it.remove();
+                    }
+                }
+                if ( entries.isEmpty() )
+                    its.remove();
+            }
+            if ( sum[0] == 0 ) {
+                if ( ctn.Entries.isEmpty() )
+                    iter.remove();
+                continue;
+            }
+            if ( sum[0] >= MIN_REQUEST ) {
+                double avg = (double)sum[2] / sum[0];
+                latency.put(item.getKey(), avg);
+                total += avg;
+            }
+        }
+
+        if ( Context.OutlierLatency <= 0 || latency.size() < 3 )
+            return;
+        int max = (latency.size() + open) / 2 - open;   // 最多剔除的数量
+        for ( Map.Entry<String, Double> item : latency.entrySet() ) {
+            if ( max <= 0 )
+                break;
+            double others = (total - item.getValue()) / (latency.size() - 1);
+            if ( item.getValue() <= others * Context.OutlierLatency || item.getValue() < OUTLIER_MIN )
+                continue;
+            Health ctn = Containers.get(item.getKey());
+            if ( ctn == null )
+                continue;
+            synchronized (ctn) {
+                if ( ctn.State != CLOSED )
+                    continue;
+                ctn.open(t);
+            }
+            max --;
+            Context.log(LogUtil.WARN, "breaker-" + item.getKey(), "latency outlier: " + Math.round(item.getValue()) + "ms / " + Math.round(others) + "ms");
+        }
+    }
+
+    /* 获得服务接口在各个容器上的健康状态 */
+    static Map<String, Register.Health> getHealth(String service, String entry) {
+        Map<String, Register.Health> res = null;
+        long t = System.currentTimeMillis();
+        for ( Map.Entry<String, Health> item : Containers.entrySet() ) {
+            Health ctn = item.getValue();
+            ConcurrentMap<String, Health> entries = ctn.Entries.get(service);
+            Health ent = entries == null ? null : entries.get(entry);
+            if ( ent == null )
+                continue;
+            long[] sum = ent.sum(t);
+            Register.Health health = new Register.Health();
+            health.state = ent.getState();
+            health.container_state = ctn.getState();
+            health.request = sum[0];
+            health.error = sum[1];
+            health.latency = sum[0] == 0 ? 0 : sum[2] / sum[0];
+            int[] limit = Limiter.getLimit(item.getKey());
+            if ( limit != null ) {
+                health.limit = limit[0];
+                health.inflight = limit[1];
+            }
+            if ( res == null )
+                res = new HashMap<>();
+            res.put(item.getKey(), health);
+        }
+        return res;
+    }
+}
@@ -25,6 +25,8 @@ import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import rewin.ubsi.common.IOData;
 import rewin.ubsi.common.LogUtil;
 import rewin.ubsi.common.Util;
@@ -32,6 +34,7 @@ import rewin.ubsi.common.Util;
 import java.net.InetSocketAddress;
 import java.util.Map;
 import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -65,11 +68,10 @@ class IOHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         Object[] res = (Object[]) msg;
-        String id = (String) res[0];
         byte code = (Byte) res[1];
         Object data = res[2];
         Map<String,Object> tailer = res.length > 3 ? (Map<String,Object>)res[3] : null;
-        Connector.setChannelResponse(ctx.channel(), id, code, data, tailer);
+        Connector.setChannelResponse(ctx.channel(), res[0], code, data, tailer);
     }
 
     @Override
@@ -83,6 +85,7 @@ class IOHandler extends ChannelInboundHandlerAdapter {
     static EventLoopGroup IOGroup = null;   // Consumer I/O处理线程池
     static Bootstrap IOBootstrap = null;    // Consumer 客户端I/O
     static Timer IOTimer = null;            // Consumer 定时任务
+    static HashedWheelTimer IOWheel = null; // Consumer 请求超时的定时器
 
     // 初始化
     static void init() {
@@ -104,6 +107,7 @@ class IOHandler extends ChannelInboundHandlerAdapter {
 
             IOTimer = new Timer();
             IOTimer.schedule(new Connector.TimerDealer(), 0, Context.REGISTER_TIMER);
+            IOWheel = new HashedWheelTimer(new DefaultThreadFactory("ubsi-consumer-timeout", true), 10, TimeUnit.MILLISECONDS, 512);
         }
     }
 
@@ -112,6 +116,14 @@ class IOHandler extends ChannelInboundHandlerAdapter {
         if ( IOGroup != null ) {
             IOTimer.cancel();
             IOTimer = null;
+            HashedWheelTimer wheel = IOWheel;
+            IOWheel = null;
+            for ( io.netty.util.Timeout timeout : wheel.stop() )
+                try {
+                    timeout.task().run(timeout);    // 未到期的超时任务立即执行，避免等待结果的请求永远阻塞
+                } catch (Exception e) {
+                    Context.log(LogUtil.ERROR, "timeout@close", e);
+                }
 
             IOGroup.shutdownGracefully();       // 关闭I/O线程池
             IOGroup = null;
@@ -121,14 +133,32 @@ class IOHandler extends ChannelInboundHandlerAdapter {
 
     // 新建连接，连接失败会抛出异常
     static Channel connect(String host, int port) throws Exception {
-        if ( IOBootstrap != null && host != null && !host.trim().isEmpty() ) {
-            try {
-                ChannelFuture f = IOBootstrap.connect(host, port).sync();
-                Router.disableRegister(host.toLowerCase() + "#" + port, false);
-                return f.channel();
-            } catch (Exception e) {}
-            Router.disableRegister(host.toLowerCase() + "#" + port, true);
+        return Connector.getChannel(connectAsync(host, port));
+    }
+
+    // 异步新建连接，在I/O线程中设置结果，连接失败时的异常为ResultException
+    static CompletableFuture<Channel> connectAsync(String host, int port) {
+        CompletableFuture<Channel> future = new CompletableFuture<>();
+        Bootstrap bootstrap = IOBootstrap;
+        if ( bootstrap == null || host == null || host.trim().isEmpty() ) {
+            future.completeExceptionally(new Context.ResultException(ErrorCode.CONNECT, "connect to " + host + "#" + port + " error"));
+            return future;
+        }
+        String addr = host.toLowerCase() + "#" + port;
+        try {
+            bootstrap.connect(host, port).addListener((ChannelFutureListener) f -> {
+                if ( f.isSuccess() ) {
+                    Router.disableRegister(addr, false);
+                    future.complete(f.channel());
+                } else {
+                    Router.disableRegister(addr, true);
+                    future.completeExceptionally(new Context.ResultException(ErrorCode.CONNECT, "connect to " + host + "#" + port + " error"));
+                }
+            });
+        } catch (Exception e) {
+            Router.disableRegister(addr, true);
+            future.completeExceptionally(new Context.ResultException(ErrorCode.CONNECT, "connect to " + host + "#" + port + " error"));
         }
-        throw new Context.ResultException(ErrorCode.CONNECT, "connect to " + host + "#" + port + " error");
+        return future;
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * UBSI Consumer对每个容器的自适应并发限制（AIMD）
+ */
+class Limiter {
+
+    final static double MIN_LIMIT = 1;      // 最小的并发限制
+    final static double INIT_LIMIT = 100;   // 初始的并发限制
+    final static double BACKOFF = 0.9;      // 过载/超时时并发限制的降低比例
+
+    double  Limit = Math.min(INIT_LIMIT, Context.ConcurrencyMax);   // 当前的并发限制
+    int     InFlight = 0;                   // 进行中的请求数量
+    long    BackoffTime = 0;                // 最近一次降低并发限制的时间戳
+
+    static ConcurrentMap<String, Limiter> Containers = new ConcurrentHashMap<>();   // 各个容器的并发限制
+
+    /* 获得容器的并发限制 */
+    static Limiter getLimiter(String addr) {
+        Limiter limiter = Containers.get(addr);
+        if ( limiter == null ) {
+            Limiter newLimiter = new Limiter();
+            limiter = Containers.putIfAbsent(addr, newLimiter);
+            if ( limiter == null )
+                limiter = newLimiter;
+        }
+        return limiter;
+    }
+
+    /* 容器的并发数是否已满 */
+    static boolean isFull(String addr) {
+        if ( Context.ConcurrencyMax <= 0 )
+            return false;
+        Limiter limiter = Containers.get(addr);
+        if ( limiter == null )
+            return false;
+        synchronized (limiter) {
+            return limiter.InFlight >= (int)limiter.Limit;
+        }
+    }
+
+    /* 占用一个并发数，wait为等待的毫秒数（<0表示不等待，0表示不限；I/O线程及回调线程中不等待），返回是否成功 */
+    static boolean acquire(String addr, long wait) {
+        if ( Context.ConcurrencyMax <= 0 )
+            return true;
+        Limiter limiter = getLimiter(addr);
+        if ( wait >= 0 && Context.isCallbackThread() )
+            wait = -1;
+        long deadline = wait > 0 ? System.currentTimeMillis() + wait : 0;
+        synchronized (limiter) {
+            while ( limiter.InFlight >= (int)limiter.Limit ) {
+                if ( wait < 0 )
+                    return false;
+                long t = 0;
+                if ( deadline > 0 ) {
+                    t = deadline - System.currentTimeMillis();
+                    if ( t <= 0 )
+                        return false;
+                }
+                try {
+                    limiter.wait(t);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            limiter.InFlight ++;
+            return true;
+        }
+    }
+
+    /* 释放一个并发数，update为true时根据请求结果调整并发限制：过载/超时/过期时按比例降低（每批请求只降低一次），满负荷的正常结果加1 */
+    static void release(String addr, int code, long requestTime, boolean update) {
+        Limiter limiter = Containers.get(addr);
+        if ( limiter == null )
+            return;
+        synchronized (limiter) {
+            if ( limiter.InFlight > 0 )
+                limiter.InFlight --;
+            if ( update ) {
+                if ( code == ErrorCode.OVERLOAD || code == ErrorCode.TIMEOUT || code == ErrorCode.EXPIRED ) {
+                    if ( requestTime > limiter.BackoffTime ) {
+                        limiter.Limit = Math.max(limiter.Limit * BACKOFF, MIN_LIMIT);
+                        limiter.BackoffTime = System.currentTimeMillis();
+                    }
+                } else if ( !Health.isError(code) && (limiter.InFlight + 1) * 2 >= limiter.Limit )
+                    limiter.Limit = Math.min(limiter.Limit + 1, Math.max(Context.ConcurrencyMax, MIN_LIMIT));
+            }
+            limiter.notify();
+        }
+    }
+
+    /* 获得容器的 [ 并发限制, 进行中的请求数量 ] */
+    static int[] getLimit(String addr) {
+        Limiter limiter = Containers.get(addr);
+        if ( limiter == null )
+            return null;
+        synchronized (limiter) {
+            return new int[] { (int)limiter.Limit, limiter.InFlight };
+        }
+    }
+}
@@ -45,6 +45,9 @@ public class Register {
         public int      Waiting;        // 正在等待的请求数
         public long     Deal;           // 已处理的请求数
         public long     Timestamp;      // 时间戳
+        public String   Host;           // 容器所在机器的主机名（本地优先路由）
+        public String   Zone;           // 容器所在的区域（本地优先路由）
+        public boolean  StreamID = false;   // 是否支持整数的请求流ID（否则Consumer发送字符串的请求ID）
         public Map<String, Service> Services = new HashMap<>();    // 加载的微服务
         public List<Filter> Filters;    // 加载的过滤器
 
@@ -73,6 +76,12 @@ public class Register {
         public int         VerRelease = -1; // 是否正式版
         public boolean     Mock = false;    // 是否模拟
         public Node[]      Nodes;           // 指定的Container节点
+        public String      Balance;         // 负载均衡策略：null或"weight"按权重随机，"p2c"随机取两个节点并选择负载较低的，"hash"按请求的键值一致性哈希
+        public String      HashHeader;      // "hash"策略时，未设置Context.setAffinityKey()则使用此请求头的数据作为键值
+        public boolean     Idempotent = false;  // 服务接口是否幂等（只读的接口也是幂等的），幂等的请求在连接中断/过载/停机时可以重试
+        public int         Cache = 0;       // 结果缓存的有效时间（秒数），0表示不缓存（容器可以通过结果Tailer的Context.TAILER_CACHE提示缓存时间）；只应配置在只读（readonly）的服务接口上
+        public boolean     Coalesce = false;    // 是否合并进行中的相同请求（服务/版本/接口/参数都相同），只应配置在只读（readonly）的服务接口上
+        public int         Hedge = 0;       // 对冲请求的延迟（毫秒数）：0表示不对冲，-1表示使用接口最近的P95响应时间；只应配置在只读（readonly）的服务接口上
     }
 
     /** 请求统计 */
@@ -82,6 +91,26 @@ public class Register {
         public long     success;            // 计数器：总正常处理次数
         public long     max_time;           // 计时器：最长的处理时间（毫秒）
         public String   req_id;             // 最长处理时间的请求ID
+        public long     cache_hit;          // 计数器：结果缓存的命中次数
+        public long     cache_miss;         // 计数器：结果缓存的未命中次数
+        public long     cache_evict;        // 计数器：结果缓存因容量不足被淘汰的次数
+        public long     coalesce;           // 计数器：合并到进行中的相同请求的次数
+        public long     retry;              // 计数器：向其他容器重试的次数
+        public long     hedge;              // 计数器：发出对冲请求的次数
+        public long     hedge_win;          // 计数器：对冲请求先返回结果的次数
+        public long     p95_time;           // 计时器：最近的P95响应时间（毫秒）
+        public Map<String, Health> health;  // 在各个容器上的健康状态
+    }
+
+    /** 容器的健康状态 */
+    public static class Health {
+        public String   state;              // 服务接口的熔断状态：closed/open/half-open
+        public String   container_state;    // 容器的熔断状态：closed/open/half-open
+        public long     request;            // 最近10秒的请求次数
+        public long     error;              // 最近10秒的错误次数
+        public long     latency;            // 最近10秒的平均响应时间（毫秒）
+        public int      limit;              // 容器当前的并发限制
+        public int      inflight;           // 容器进行中的请求数量
     }
 
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * UBSI Consumer的重试预算（令牌桶）
+ */
+class Retry {
+
+    final static double MAX_TOKENS = 10;    // 令牌桶的容量，即允许突发的重试次数
+
+    double  Tokens = MAX_TOKENS;            // 当前的令牌数量
+
+    static ConcurrentMap<String, Retry> Services = new ConcurrentHashMap<>();  // 各个服务的重试预算
+
+    /* 获得服务的重试预算 */
+    static Retry getRetry(String service) {
+        Retry retry = Services.get(service);
+        if ( retry == null ) {
+            Retry newRetry = new Retry();
+            retry = Services.putIfAbsent(service, newRetry);
+            if ( retry == null )
+                retry = newRetry;
+        }
+        return retry;
+    }
+
+    /* 发送了一个请求，按重试预算的比例存入令牌 */
+    static void deposit(String service) {
+        if ( Context.RetryBudget <= 0 )
+            return;
+        Retry retry = getRetry(service);
+        synchronized (retry) {
+            if ( retry.Tokens < MAX_TOKENS )
+                retry.Tokens = Math.min(retry.Tokens + Context.RetryBudget / 100.0, MAX_TOKENS);
+        }
+    }
+
+    /* 申请一次重试，令牌不足时返回false */
+    static boolean acquire(String service) {
+        if ( Context.RetryBudget <= 0 )
+            return false;
+        Retry retry = getRetry(service);
+        synchronized (retry) {
+            if ( retry.Tokens < 1 )
+                return false;
+            retry.Tokens -= 1;
+            return true;
+        }
+    }
+}
@@ -29,6 +29,7 @@ class Router {
 
     volatile static Map<String, Register.Container> Containers = null;   // 容器注册数据
     static ConcurrentMap<String, Long> Disabled = new ConcurrentHashMap<>();    // 失败节点
+    static ConcurrentMap<String, Long> Starting = new ConcurrentHashMap<>();    // 新加入或恢复的节点：开始增加权重的时间戳
 
     static ConcurrentLinkedQueue<String> Heartbeats = new ConcurrentLinkedQueue<>();    // 容器消息
 
@@ -47,6 +48,25 @@ class Router {
         Router.Containers = containers;
         ActiveContainer.clear();
         ClearTimestamp = t;
+        buildIndex();
+        prewarm(containers, null);
+    }
+
+    /* 预先建立到容器的连接：容器提供了本客户端请求过的服务，names为null表示全部的容器 */
+    static void prewarm(Map<String, Register.Container> containers, Collection<String> names) {
+        if ( !Context.ConnectionPrewarm || containers == null || Statistics.Records.isEmpty() )
+            return;
+        long t = System.currentTimeMillis();
+        for ( String name : names == null ? containers.keySet() : names ) {
+            Register.Container ctn = containers.get(name);
+            if ( ctn == null || ctn.Services == null || ctn.isInvalid(t) )
+                continue;
+            for ( String service : ctn.Services.keySet() )
+                if ( Statistics.Records.containsKey(service) ) {
+                    Connector.prewarm(name);
+                    break;
+                }
+        }
     }
 
     /* 读取Redis中的单个容器注册数据 */
@@ -67,6 +87,7 @@ class Router {
         Map<String, Register.Container> containers = Containers;
         Map<String, Register.Container> newest = new HashMap<>();
         Map<String, Integer> new_wait = new HashMap<>();
+        boolean changed = false;    // 是否需要重建路由索引
         while ( true ) {
             String msg = Heartbeats.poll();
             if ( msg == null )
@@ -100,11 +121,16 @@ class Router {
                 if ( waiting >= 0 || waiting == -2 ) {
                     Register.Container ctn = containers == null ? null : containers.get(ctname);
                     if (ctn != null) {
+                        long t = System.currentTimeMillis();
+                        int state = getState(ctname, ctn, t);
+                        int wait = ctn.Waiting;
                         if (waiting >= 0) {
-                            ctn.Timestamp = System.currentTimeMillis();
+                            ctn.Timestamp = t;
                             ctn.Waiting = waiting;
                         } else
                             ctn.Timestamp = 0;
+                        if ( state != getState(ctname, ctn, t) || isWeightChanged(wait, ctn.Waiting) )
+                            changed = true;
                         continue;
                     }
                     if (waiting < 0)
@@ -117,6 +143,7 @@ class Router {
         }
 
         if ( !new_wait.isEmpty() ) {
+            boolean loaded = false;
             if ( containers != null )
                 for ( Map.Entry<String, Register.Container> entry : containers.entrySet() )
                     newest.put(entry.getKey(), entry.getValue());
@@ -129,9 +156,16 @@ class Router {
                 int wait = entry.getValue();
                 if ( wait >= 0 )
                     ctnew.Waiting = wait;
-                newest.put(ctname, ctnew);
+                Register.Container ctold = newest.put(ctname, ctnew);
+                if ( ctold == null || ctold.isInvalid(ctnew.Timestamp) || ctnew.Deal < ctold.Deal )
+                    Starting.put(ctname, ctnew.Timestamp);      // 新加入或重启的容器
+                loaded = true;
+            }
+            if ( loaded ) {
+                Containers = newest;
+                changed = true;
+                prewarm(newest, new_wait.keySet());
             }
-            Containers = newest;
         }
 
         if ( System.currentTimeMillis() - ClearTimestamp > Context.BEATHEART_RECV * 1000 && Containers != null ) {
@@ -150,156 +184,623 @@ class Router {
                     jedis.hdel(Context.REG_CONTAINER, bads.toArray(new byte[bads.size()][]));
                 } catch (Exception e) { }
                 Containers = newest;
+                changed = true;
             }
             ActiveContainer.clear();
             ClearTimestamp = System.currentTimeMillis();
         }
+
+        // 容器的加入/移除、可用状态或权重明显变化时立即重建，慢启动及等待数量的小幅变化由定时重建更新
+        if ( changed || System.currentTimeMillis() - RouteIndex.Timestamp > INDEX_REFRESH )
+            buildIndex();
+    }
+
+    /* 容器在路由索引中的状态：0-不可用，1-过载，2-心跳延迟（权重减半），3-正常 */
+    static int getState(String ctn_name, Register.Container ctn, long t) {
+        if ( ctn.isInvalid(t) )
+            return 0;
+        Long disabled = Disabled.get(ctn_name);
+        if ( disabled != null && disabled > ctn.Timestamp )
+            return 0;
+        if ( ctn.Waiting >= ctn.Overload )
+            return 1;
+        if ( t - ctn.Timestamp > Context.BEATHEART_RECV * 1000 / 2 )
+            return 2;
+        return 3;
+    }
+    /* 等待数量的变化是否使权重改变了一倍以上，较小的变化等待定时重建索引 */
+    static boolean isWeightChanged(int wait, int waiting) {
+        wait = Math.max(wait, 1);
+        waiting = Math.max(waiting, 1);
+        return wait >= waiting * 2 || waiting >= wait * 2;
     }
 
     /* 记录失败节点 */
     static void disableRegister(String addr, boolean disable) {
         if ( disable )
             Disabled.put(addr, System.currentTimeMillis());
+        else if ( Disabled.remove(addr) == null )
+            return;
         else
-            Disabled.remove(addr);
+            Starting.put(addr, System.currentTimeMillis());     // 恢复的节点
+        IndexDirty = true;      // 可能在I/O线程中调用，由定时任务重建路由索引
     }
 
-    static Register.Router[] LocalTable; // 本地路由配置
+    final static double SLOWSTART_MIN = 0.1;    // 开始增加权重时的比例
 
-    /* 路由算法 */
-    static Object[] getServer(String service, String entry, int vmin, int vmax, int vrel) throws Exception {
-        Map<String, Register.Container> containers = Containers;
-        Register.Router[] tables = LocalTable;
-        if ( tables != null ) {
-            for ( int i = 0; i < tables.length; i ++ ) {
-                if ( !Util.matchString(service, tables[i].Service) )
-                    continue;
-                if ( !Util.matchString(entry, tables[i].Entry) )
-                    continue;
-                if ( vmin > 0 && tables[i].VerMin > 0 && vmin < tables[i].VerMin )
-                    continue;
-                if ( vmax > 0 && tables[i].VerMax > 0 && vmax > tables[i].VerMax )
-                    continue;
-                if ( vrel >= 0 && tables[i].VerRelease >= 0 ) {
-                    if ( tables[i].VerRelease > 0 && vrel == 0 )
-                        continue;
-                    if ( tables[i].VerRelease == 0 && vrel > 0 )
-                        continue;
+    /* 新加入或恢复的节点的权重比例，从SLOWSTART_MIN线性增加到1 */
+    static double getSlowStart(String addr, long t) {
+        Long start = Starting.get(addr);
+        if ( start == null )
+            return 1;
+        long window = Context.SlowStart * 1000L;
+        if ( t - start >= window ) {
+            Starting.remove(addr, start);
+            return 1;
+        }
+        if ( t <= start )
+            return SLOWSTART_MIN;
+        return SLOWSTART_MIN + (1 - SLOWSTART_MIN) * (t - start) / window;
+    }
+
+    /* 路由查找的键值 */
+    static class RouteKey {
+        final String    Service;        // 服务名字
+        final String    Entry;          // 接口名字，查找注册表时为null
+        final int       VerMin;         // 最小版本号
+        final int       VerMax;         // 最大版本号
+        final int       VerRelease;     // 是否正式版本
+        final int       Hash;
+
+        RouteKey(String service, String entry, int vmin, int vmax, int vrel) {
+            Service = service;
+            Entry = entry;
+            VerMin = vmin;
+            VerMax = vmax;
+            VerRelease = vrel;
+            int h = service.hashCode();
+            if ( entry != null )
+                h = h * 31 + entry.hashCode();
+            Hash = ((h * 31 + vmin) * 31 + vmax) * 31 + vrel;
+        }
+        public int hashCode() {
+            return Hash;
+        }
+        public boolean equals(Object o) {
+            if ( this == o )
+                return true;
+            if ( !(o instanceof RouteKey) )
+                return false;
+            RouteKey key = (RouteKey)o;
+            return Hash == key.Hash && VerMin == key.VerMin && VerMax == key.VerMax && VerRelease == key.VerRelease
+                    && Service.equals(key.Service) && Objects.equals(Entry, key.Entry);
+        }
+    }
+
+    /* 注册表中可用的路由节点，按本地层级分组：首选的节点 -> 更远层级的节点 */
+    static class Route {
+        final Register.Node[]   Nodes;      // 可用的节点
+        final String[]          Addrs;      // 节点的地址
+        final double[]          Weights;    // 累计权重
+        final Route             Next;       // 下一个层级的节点（本层级的节点都不可用时选择），没有为null
+
+        Route(List<Register.Node> nodes, List<String> addrs, Route next) {
+            Nodes = nodes.toArray(new Register.Node[nodes.size()]);
+            Addrs = addrs.toArray(new String[addrs.size()]);
+            Weights = new double[Nodes.length];
+            for ( int i = 0; i < Weights.length; i ++ )
+                Weights[i] = (i == 0 ? 0 : Weights[i-1]) + Nodes[i].Weight;
+            Next = next;
+        }
+
+        volatile Ring HashRing = null;      // 一致性哈希环，需要时才建立
+
+        /* 按键值的一致性哈希选择节点 */
+        int select(String key) {
+            Ring ring = HashRing;
+            if ( ring == null )
+                HashRing = ring = new Ring(Addrs);
+            return ring.get(hash(key));
+        }
+
+        /* 按权重选择节点，p2c为true时再随机取一个节点比较负载 */
+        int select(boolean p2c) {
+            int i = 0;
+            if ( Nodes.length > 1 ) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                double sum = random.nextDouble() * Weights[Weights.length - 1];
+                int low = 0, high = Weights.length - 1;
+                while ( low < high ) {
+                    int mid = (low + high) >>> 1;
+                    if ( Weights[mid] >= sum )
+                        high = mid;
+                    else
+                        low = mid + 1;
                 }
-                if ( tables[i].Mock ) {
-                    try {
-                        return new Object[]{Context.getMockData(service, entry)};
-                    } catch (Exception e) {
-                        throw new Context.ResultException(ErrorCode.MOCK, "mock data of " + service + "#" + entry + "() error: " + e.getMessage());
-                    }
+                i = low;
+                if ( p2c ) {
+                    int j = (i + 1 + random.nextInt(Nodes.length - 1)) % Nodes.length;
+                    if ( getScore(Addrs[j]) < getScore(Addrs[i]) )
+                        i = j;
                 }
-                Register.Node[] lnodes = tables[i].Nodes;
-                if ( lnodes == null )
-                    break;      // 不指定本地路由
-                if ( lnodes.length == 0 )
-                    throw new Context.ResultException(ErrorCode.ROUTER, "no routing path by Local-Setting for " + service);
-                return selectNode(lnodes, true);
             }
+            return i;
+        }
+    }
+
+    /* 注册表的路由索引，注册表/心跳/失败节点变化时整体重建 */
+    static class Index {
+        final Map<String, Register.Container> Containers;   // 对应的注册表
+        final long Timestamp;                               // 建立索引的时间戳
+        final ConcurrentMap<RouteKey, Route> Routes = new ConcurrentHashMap<>();    // 已经编译的路由
+
+        Index(Map<String, Register.Container> containers, long t) {
+            Containers = containers;
+            Timestamp = t;
+        }
+
+        /* 获得路由，没有时编译 */
+        Route get(RouteKey key) {
+            Route route = Routes.get(key);
+            if ( route == null ) {
+                route = compile(key);
+                Route old = Routes.putIfAbsent(key, route);
+                if ( old != null )
+                    route = old;
+            }
+            return route;
         }
 
-        if ( containers != null ) {
-            List<Register.Node> nodes = new ArrayList<>();
-            long t = System.currentTimeMillis();
-            Map reg_ctns = new HashMap();
-            for ( Map.Entry<String, Register.Container> ctn : containers.entrySet() ) {
+        /* 编译路由：筛选可用的容器并计算累计权重，优先选择本地的容器 */
+        Route compile(RouteKey key) {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            List<Register.Node>[] nodes = new List[] { new ArrayList<>(), new ArrayList<>(), new ArrayList<>() };
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            List<String>[] addrs = new List[] { new ArrayList<>(), new ArrayList<>(), new ArrayList<>() };
+            long[][] loads = new long[3][2];    // 各层级的 [ 等待数, 最大等待数 ]
+            for ( Map.Entry<String, Register.Container> ctn : Containers.entrySet() ) {
                 String ctn_name = ctn.getKey();
                 Register.Container container = ctn.getValue();
-                Register.Service ms = container.Services.get(service);
-                if ( ms == null ) {
-                    reg_ctns.put(ctn_name, "service not found");
+                if ( reject(ctn_name, container, key, Timestamp) != null )
                     continue;
-                }
-                if ( ms.Status != 1 ) {
-                    reg_ctns.put(ctn_name, "invalid status: " + ms.Status);
+                int split = ctn_name.lastIndexOf('#');
+                if ( split <= 0 )
                     continue;
-                }
-                if ( vmin > 0 && ms.Version < vmin ) {
-                    reg_ctns.put(ctn_name, "min-version not match: " + Util.getVersion(ms.Version) + (ms.Release ? "-R" : "-B"));
+                Register.Node node = new Register.Node();
+                try {
+                    node.Host = ctn_name.substring(0, split);
+                    node.Port = Integer.parseInt(ctn_name.substring(split + 1));
+                } catch (Exception e) {
+                    Context.log(LogUtil.ERROR, "router-" + key.Service, e.toString());
                     continue;
                 }
-                if ( vmax > 0 && ms.Version > vmax ) {
-                    reg_ctns.put(ctn_name, "max-version not match: " + Util.getVersion(ms.Version) + (ms.Release ? "-R" : "-B"));
-                    continue;
+                int wait = container.Waiting == 0 ? 1 : container.Waiting;
+                node.Weight = (double)container.Overload / wait;
+                if ( Timestamp - container.Timestamp > Context.BEATHEART_RECV * 1000 / 2 )
+                    node.Weight /= 2;
+                node.Weight *= getSlowStart(ctn_name, Timestamp);
+                int tier = Context.LocalityLoad > 0 ? getTier(container) : TIER_REMOTE;
+                nodes[tier].add(node);
+                addrs[tier].add(ctn_name);
+                loads[tier][0] += container.Waiting;
+                loads[tier][1] += container.Overload;
+            }
+
+            // 本地节点的负载超过阈值时，依次合并更远的节点作为首选，其余的层级依次作为后备
+            int prefer = TIER_REMOTE;
+            long waiting = 0, overload = 0;
+            for ( int tier = TIER_HOST; tier < TIER_REMOTE; tier ++ ) {
+                waiting += loads[tier][0];
+                overload += loads[tier][1];
+                if ( overload > 0 && waiting * 100 < overload * Context.LocalityLoad ) {
+                    prefer = tier;
+                    break;
                 }
-                if ( vrel >= 0 ) {
-                    if ( ms.Release && vrel == 0 ) {
-                        reg_ctns.put(ctn_name, "rel-version not match: " + Util.getVersion(ms.Version) + (ms.Release ? "-R" : "-B"));
+            }
+            Route route = null;
+            for ( int tier = TIER_REMOTE; tier > prefer; tier -- )
+                if ( !nodes[tier].isEmpty() )
+                    route = new Route(nodes[tier], addrs[tier], route);
+            for ( int tier = prefer - 1; tier >= TIER_HOST; tier -- ) {
+                nodes[prefer].addAll(0, nodes[tier]);
+                addrs[prefer].addAll(0, addrs[tier]);
+            }
+            if ( !nodes[prefer].isEmpty() || route == null )
+                route = new Route(nodes[prefer], addrs[prefer], route);
+            return route;
+        }
+    }
+
+    final static int TIER_HOST = 0;     // 本地层级：同一主机
+    final static int TIER_ZONE = 1;     // 本地层级：同一区域
+    final static int TIER_REMOTE = 2;   // 本地层级：远端
+
+    /* 获得容器相对于本机的层级 */
+    static int getTier(Register.Container container) {
+        if ( container.Host != null && container.Host.equals(Context.LocalHost) )
+            return TIER_HOST;
+        if ( container.Zone != null && container.Zone.equals(Context.Zone) )
+            return TIER_ZONE;
+        return TIER_REMOTE;
+    }
+
+    final static long INDEX_REFRESH = 1000;     // 路由索引的最长刷新间隔（毫秒数）
+    volatile static Index RouteIndex = new Index(null, 0);  // 当前的路由索引
+    final static Object IndexLock = new Object();
+    volatile static boolean IndexDirty = false;     // 路由索引是否需要重建（等待定时任务处理）
+
+    /* 重建路由索引，保留已经编译过的路由 */
+    static void buildIndex() {
+        synchronized (IndexLock) {
+            IndexDirty = false;
+            Index old = RouteIndex;
+            Index index = new Index(Containers, System.currentTimeMillis());
+            if ( index.Containers != null )
+                for ( RouteKey key : old.Routes.keySet() )
+                    index.Routes.put(key, index.compile(key));
+            RouteIndex = index;
+        }
+    }
+
+    /* 检查容器是否可用，返回不可用的原因 */
+    static String reject(String ctn_name, Register.Container container, RouteKey key, long t) {
+        String reason = invalid(ctn_name, container, key, t);
+        if ( reason != null )
+            return reason;
+        if ( container.Waiting >= container.Overload )
+            return "overload";
+        return null;
+    }
+    /* 检查容器是否提供了有效的服务（不考虑负载），返回无效的原因 */
+    static String invalid(String ctn_name, Register.Container container, RouteKey key, long t) {
+        Register.Service ms = container.Services.get(key.Service);
+        if ( ms == null )
+            return "service not found";
+        if ( ms.Status != 1 )
+            return "invalid status: " + ms.Status;
+        if ( key.VerMin > 0 && ms.Version < key.VerMin )
+            return "min-version not match: " + Util.getVersion(ms.Version) + (ms.Release ? "-R" : "-B");
+        if ( key.VerMax > 0 && ms.Version > key.VerMax )
+            return "max-version not match: " + Util.getVersion(ms.Version) + (ms.Release ? "-R" : "-B");
+        if ( key.VerRelease >= 0 ) {
+            if ( ms.Release && key.VerRelease == 0 )
+                return "rel-version not match: " + Util.getVersion(ms.Version) + (ms.Release ? "-R" : "-B");
+            if ( !ms.Release && key.VerRelease > 0 )
+                return "rel-version not match: " + Util.getVersion(ms.Version) + (ms.Release ? "-R" : "-B");
+        }
+        if ( container.isInvalid(t) )
+            return "invalid timestamp: " + (t - container.Timestamp);
+        Long disabled = Disabled.get(ctn_name);
+        if ( disabled != null && disabled > container.Timestamp )
+            return "disabled";
+        return null;
+    }
+
+    /* 获得提供服务的全部有效容器（广播请求），不考虑负载及本地优先 */
+    static List<String> getContainers(String service, int vmin, int vmax, int vrel) {
+        Index index = RouteIndex;
+        List<String> res = new ArrayList<>();
+        if ( index.Containers == null )
+            return res;
+        RouteKey key = new RouteKey(service, null, vmin, vmax, vrel);
+        long t = System.currentTimeMillis();
+        for ( Map.Entry<String, Register.Container> ctn : index.Containers.entrySet() )
+            if ( ctn.getKey().lastIndexOf('#') > 0 && invalid(ctn.getKey(), ctn.getValue(), key, t) == null )
+                res.add(ctn.getKey());
+        return res;
+    }
+
+    final static String BALANCE_P2C = "p2c";    // 负载均衡策略：随机取两个节点并选择负载较低的
+    final static double LATENCY_ALPHA = 0.2;    // 响应时间移动平均的衰减系数
+
+    /* 容器的响应时间 */
+    static class Latency {
+        double  Ewma = 0;       // 响应时间的指数加权移动平均（毫秒数）
+
+        synchronized void update(long time) {
+            Ewma = Ewma == 0 ? time : Ewma + LATENCY_ALPHA * (time - Ewma);
+        }
+    }
+    static ConcurrentMap<String, Latency> Latencies = new ConcurrentHashMap<>();  // 各个容器的响应时间
+
+    /* 记录容器的响应时间 */
+    static void updateLatency(String addr, long time) {
+        Latency latency = Latencies.get(addr);
+        if ( latency == null ) {
+            Latency newLatency = new Latency();
+            latency = Latencies.putIfAbsent(addr, newLatency);
+            if ( latency == null )
+                latency = newLatency;
+        }
+        latency.update(time);
+    }
+
+    /* 容器的负载评分：(响应时间 + 1) * (等待结果的请求数量 + 1)，越小越好 */
+    static double getScore(String addr) {
+        Latency latency = Latencies.get(addr);
+        double time = latency == null ? 0 : latency.Ewma;
+        return (time + 1) * (Connector.getPending(addr) + 1);
+    }
+
+    final static String BALANCE_HASH = "hash";  // 负载均衡策略：按请求的键值一致性哈希
+    final static int HASH_VNODES = 160;         // 一致性哈希环上每个节点的虚拟节点数量
+
+    /* 一致性哈希环，虚拟节点的位置只取决于节点地址，节点增减时只影响相邻区间的键值 */
+    static class Ring {
+        final int[] Points;     // 虚拟节点的哈希值（有序）
+        final int[] Owners;     // 虚拟节点对应的节点序号
+
+        Ring(String[] addrs) {
+            long[] vnodes = new long[addrs.length * HASH_VNODES];
+            for ( int i = 0; i < addrs.length; i ++ )
+                for ( int j = 0; j < HASH_VNODES; j ++ )
+                    vnodes[i * HASH_VNODES + j] = ((long)hash(addrs[i] + "#" + j) << 32) | i;
+            Arrays.sort(vnodes);
+            Points = new int[vnodes.length];
+            Owners = new int[vnodes.length];
+            for ( int i = 0; i < vnodes.length; i ++ ) {
+                Points[i] = (int)(vnodes[i] >> 32);
+                Owners[i] = (int)vnodes[i];
+            }
+        }
+
+        /* 顺时针找到第一个虚拟节点，返回节点序号 */
+        int get(int hash) {
+            int i = Arrays.binarySearch(Points, hash);
+            if ( i < 0 )
+                i = -i - 1;
+            if ( i >= Points.length )
+                i = 0;
+            return Owners[i];
+        }
+    }
+
+    /* 键值的哈希（murmur3的混合函数） */
+    static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /* 获得一致性哈希路由的键值 */
+    static String getAffinityKey(Context context, Register.Router router) {
+        if ( context.AffinityKey != null )
+            return context.AffinityKey;
+        if ( router.HashHeader == null )
+            return null;
+        Object value = context.getHeader(router.HashHeader);
+        return value == null ? null : value.toString();
+    }
+
+    static Register.Router[] LocalTable; // 本地路由配置
+
+    /* 本地路由配置的匹配结果 */
+    static class Local {
+        final Register.Router[] Table;  // 本地路由配置
+        final ConcurrentMap<RouteKey, Register.Router> Matched = new ConcurrentHashMap<>();  // 匹配结果
+
+        Local(Register.Router[] table) {
+            Table = table;
+        }
+
+        final ConcurrentMap<Register.Router, Ring> Rings = new ConcurrentHashMap<>();  // 本地节点的一致性哈希环
+
+        /* 获得本地节点的一致性哈希环 */
+        Ring getRing(Register.Router router) {
+            Ring ring = Rings.get(router);
+            if ( ring == null ) {
+                String[] addrs = new String[router.Nodes.length];
+                for ( int i = 0; i < addrs.length; i ++ )
+                    addrs[i] = router.Nodes[i].Host + "#" + router.Nodes[i].Port;
+                ring = new Ring(addrs);
+                Rings.putIfAbsent(router, ring);
+            }
+            return ring;
+        }
+
+        /* 获得匹配的配置项，没有匹配返回NONE */
+        Register.Router get(RouteKey key) {
+            Register.Router router = Matched.get(key);
+            if ( router == null ) {
+                router = match(key);
+                Matched.putIfAbsent(key, router);
+            }
+            return router;
+        }
+
+        Register.Router match(RouteKey key) {
+            for ( int i = 0; i < Table.length; i ++ ) {
+                if ( !Util.matchString(key.Service, Table[i].Service) )
+                    continue;
+                if ( !Util.matchString(key.Entry, Table[i].Entry) )
+                    continue;
+                if ( key.VerMin > 0 && Table[i].VerMin > 0 && key.VerMin < Table[i].VerMin )
+                    continue;
+                if ( key.VerMax > 0 && Table[i].VerMax > 0 && key.VerMax > Table[i].VerMax )
+                    continue;
+                if ( key.VerRelease >= 0 && Table[i].VerRelease >= 0 ) {
+                    if ( Table[i].VerRelease > 0 && key.VerRelease == 0 )
                         continue;
-                    }
-                    if ( !ms.Release && vrel > 0 ) {
-                        reg_ctns.put(ctn_name, "rel-version not match: " + Util.getVersion(ms.Version) + (ms.Release ? "-R" : "-B"));
+                    if ( Table[i].VerRelease == 0 && key.VerRelease > 0 )
                         continue;
-                    }
-                }
-                if ( container.isInvalid(t) ) {
-                    reg_ctns.put(ctn_name, "invalid timestamp: " + (t - container.Timestamp));
-                    continue;
                 }
-                Long disabled = Disabled.get(ctn_name);
-                if ( disabled != null && disabled > container.Timestamp ) {
-                    reg_ctns.put(ctn_name, "disabled");
-                    continue;
+                return Table[i];
+            }
+            return NONE;
+        }
+    }
+
+    final static Register.Router NONE = new Register.Router();  // 没有匹配的本地路由配置
+    volatile static Local LocalRoute = null;    // 本地路由配置的匹配结果
+
+    /* 设置本地路由配置 */
+    static synchronized void setLocalTable(Register.Router[] router) {
+        LocalTable = router;
+        LocalRoute = router == null ? null : new Local(router);
+    }
+
+    /* 获得请求匹配的本地路由配置，没有匹配时返回null */
+    static Register.Router getLocalRouter(Context context) {
+        Local local = LocalRoute;
+        if ( local == null )
+            return null;
+        Register.Router router = local.get(new RouteKey(context.Service, (String)context.Param[0], context.VerMin, context.VerMax, context.VerRelease));
+        return router == NONE ? null : router;
+    }
+
+    /* 路由算法 */
+    static Object[] getServer(Context context) throws Exception {
+        String service = context.Service;
+        String entry = (String)context.Param[0];
+        int vmin = context.VerMin;
+        int vmax = context.VerMax;
+        int vrel = context.VerRelease;
+        Local local = LocalRoute;
+        boolean p2c = false;
+        String affinity = null; // 一致性哈希的键值
+        if ( local != null ) {
+            Register.Router router = local.get(new RouteKey(service, entry, vmin, vmax, vrel));
+            context.RouteHedge = router == NONE ? 0 : router.Hedge;
+            context.RouteIdempotent = router != NONE && router.Idempotent;
+            if ( router != NONE ) {
+                p2c = BALANCE_P2C.equalsIgnoreCase(router.Balance);
+                if ( BALANCE_HASH.equalsIgnoreCase(router.Balance) )
+                    affinity = getAffinityKey(context, router);
+                if ( router.Mock ) {
+                    try {
+                        return new Object[]{Context.getMockData(service, entry)};
+                    } catch (Exception e) {
+                        throw new Context.ResultException(ErrorCode.MOCK, "mock data of " + service + "#" + entry + "() error: " + e.getMessage());
+                    }
                 }
-                Register.Node node = new Register.Node();
-                try {
-                    String[] hp = ctn_name.split("#");
-                    node.Host = hp[0];
-                    node.Port = Integer.parseInt(hp[1]);
-                    if ( container.Waiting >= container.Overload ) {
-                        reg_ctns.put(ctn_name, "overload");
-                        continue;
+                Register.Node[] lnodes = router.Nodes;
+                if ( lnodes != null ) {     // 为null表示不指定本地路由
+                    if ( lnodes.length == 0 )
+                        throw new Context.ResultException(ErrorCode.ROUTER, "no routing path by Local-Setting for " + service);
+                    int i = -1;
+                    if ( affinity != null ) {
+                        i = local.getRing(router).get(hash(affinity));
+                        Long dt = Disabled.get(lnodes[i].Host + "#" + lnodes[i].Port);
+                        if ( dt != null && System.currentTimeMillis() - dt < Context.TimeoutReconnect * 1000 )
+                            i = -1;
                     }
-                    int wait = container.Waiting == 0 ? 1 : container.Waiting;
-                    node.Weight = (double)container.Overload / wait;
-                    if ( t - container.Timestamp > Context.BEATHEART_RECV * 1000 / 2 )
-                        node.Weight /= 2;
-                } catch (Exception e) {
-                    Context.log(LogUtil.ERROR, "router-" + service, e.toString());
-                    continue;
+                    if ( i < 0 )
+                        i = selectNode(lnodes, true, p2c);
+                    i = checkHealth(lnodes, null, i, context);
+                    return new Object[] { lnodes[i].Host, lnodes[i].Port };
                 }
-                nodes.add(node);
             }
-            if ( nodes.isEmpty() ) {
-                if ( Context.LogNoRouting && !LogUtil.LOG_SERVICE.equals(service) )
+        }
+
+        Index index = RouteIndex;
+        if ( index.Containers != null ) {
+            RouteKey key = new RouteKey(service, null, vmin, vmax, vrel);
+            Route route = index.get(key);
+            if ( route.Nodes.length == 0 ) {
+                if ( Context.LogNoRouting && !LogUtil.LOG_SERVICE.equals(service) ) {
+                    Map<String, Object> reg_ctns = new HashMap<>();
+                    for ( Map.Entry<String, Register.Container> ctn : index.Containers.entrySet() ) {
+                        String reason = reject(ctn.getKey(), ctn.getValue(), key, index.Timestamp);
+                        reg_ctns.put(ctn.getKey(), reason == null ? "invalid address" : reason);
+                    }
                     Context.log(LogUtil.DEBUG, "router-" + service, reg_ctns);
+                }
                 throw new Context.ResultException(ErrorCode.ROUTER, "no routing path by Register for " + service);
             }
-            return selectNode(nodes.toArray(new Register.Node[nodes.size()]), false);
+            Register.Node node = select(route, affinity, p2c, context);
+            return new Object[] { node.Host, node.Port };
         }
         throw new Context.ResultException(ErrorCode.ROUTER, "no valid routing path for " + service);
     }
 
-    // 选择容器
-    static Object[] selectNode(Register.Node[] nodes, boolean checkDisable) {
+    /* 按层级选择注册表的路由节点：本层级的节点都被熔断/并发已满/需要避开时选择下一个层级，都不可用时仍使用首选层级中选中的节点；对冲/重试请求没有可用的其他节点时抛出异常 */
+    static Register.Node select(Route route, String affinity, boolean p2c, Context context) throws Exception {
+        String exclude = context.ExcludeContainer;
+        boolean check = exclude != null || !Health.Containers.isEmpty() || !Limiter.Containers.isEmpty();
+        int first = -1;
+        for ( Route tier = route; tier != null; tier = tier.Next ) {
+            int i = affinity != null ? tier.select(affinity) : tier.select(p2c);
+            if ( !check )
+                return tier.Nodes[i];
+            if ( first < 0 )
+                first = i;
+            i = findUsable(tier.Nodes, tier.Addrs, i, context);
+            if ( i >= 0 )
+                return tier.Nodes[i];
+        }
+        if ( exclude != null )
+            throw new Context.ResultException(ErrorCode.ROUTER, "no other routing path for " + context.Service);
+        return route.Nodes[first];
+    }
+
+    /* 选中的容器被熔断或并发已满时，顺序选择下一个可用的容器，都不可用时仍使用选中的容器；对冲/重试请求需要避开原请求的容器，没有可用的其他容器时抛出异常 */
+    static int checkHealth(Register.Node[] nodes, String[] addrs, int select, Context context) throws Exception {
+        String exclude = context.ExcludeContainer;
+        if ( exclude == null && (nodes.length == 1 || (Health.Containers.isEmpty() && Limiter.Containers.isEmpty())) )
+            return select;
+        int i = findUsable(nodes, addrs, select, context);
+        if ( i >= 0 )
+            return i;
+        if ( exclude != null )
+            throw new Context.ResultException(ErrorCode.ROUTER, "no other routing path for " + context.Service);
+        return select;
+    }
+
+    /* 从选中的容器开始顺序查找可用的容器（未熔断、并发未满、不是需要避开的容器），没有返回-1 */
+    static int findUsable(Register.Node[] nodes, String[] addrs, int select, Context context) {
+        String exclude = context.ExcludeContainer;
+        for ( int i = 0; i < nodes.length; i ++ ) {
+            int j = (select + i) % nodes.length;
+            String addr = addrs != null ? addrs[j] : nodes[j].Host + "#" + nodes[j].Port;
+            if ( addr.equals(exclude) )
+                continue;
+            if ( !Limiter.isFull(addr) && Health.allow(addr, context.Service, (String)context.Param[0]) )
+                return j;
+        }
+        return -1;
+    }
+
+    // 选择容器，p2c为true时再随机取一个节点比较负载
+    static int selectNode(Register.Node[] nodes, boolean checkDisable, boolean p2c) {
         if ( nodes.length == 1 )
-            return new Object[] { nodes[0].Host, nodes[0].Port };
+            return 0;
         double sum = 0;
         double[] weight = new double[nodes.length];
         long t = System.currentTimeMillis();
         for ( int i = 0; i < nodes.length; i ++ ) {
             weight[i] = nodes[i].Weight;
             if ( checkDisable ) {
-                Long dt = Disabled.get(nodes[i].Host + "#" + nodes[i].Port);
+                String addr = nodes[i].Host + "#" + nodes[i].Port;
+                Long dt = Disabled.get(addr);
                 if ( dt != null ) {
                     if ( t - dt < Context.TimeoutReconnect * 1000 )
                         weight[i] = 0;
                     else
                         weight[i] /= 2;
-                }
+                } else
+                    weight[i] *= getSlowStart(addr, t);
             }
             sum += weight[i];
         }
         for ( int i = 1; i < weight.length; i ++ )
             weight[i] += weight[i-1];
         sum = Math.random() * sum;
+        int select = 0;
         for ( int i = 0; i < weight.length; i ++ )
-            if ( weight[i] >= sum )
-                return new Object[] { nodes[i].Host, nodes[i].Port };
-        return new Object[] { nodes[0].Host, nodes[0].Port };
+            if ( weight[i] >= sum ) {
+                select = i;
+                break;
+            }
+        if ( p2c ) {
+            int other = (select + 1 + ThreadLocalRandom.current().nextInt(nodes.length - 1)) % nodes.length;
+            double w = other == 0 ? weight[0] : weight[other] - weight[other - 1];
+            if ( w > 0 && getScore(nodes[other].Host + "#" + nodes[other].Port) < getScore(nodes[select].Host + "#" + nodes[select].Port) )
+                select = other;
+        }
+        return select;
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import rewin.ubsi.common.Codec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * UBSI Consumer合并进行中的相同请求（single-flight）
+ */
+class SingleFlight {
+
+    ByteBuffer      Key;                            // 请求的键值
+    List<Context>   Followers = new ArrayList<>();  // 合并到此请求的其他请求
+    boolean         Done = false;                   // 请求是否已经结束
+
+    static ConcurrentMap<ByteBuffer, SingleFlight> Flights = new ConcurrentHashMap<>();     // 进行中的请求
+
+    /* 请求的键值：服务名字、版本过滤、接口名字及参数的编码（不包括请求头） */
+    static ByteBuffer getKey(Context context) {
+        return ByteBuffer.wrap(Codec.encodeBytes(new Object[] { context.Service, context.VerMin, context.VerMax, context.VerRelease, context.Param }));
+    }
+
+    /* 开始请求，已经有进行中的相同请求时返回null */
+    static SingleFlight start(ByteBuffer key) {
+        SingleFlight flight = new SingleFlight();
+        flight.Key = key;
+        return Flights.putIfAbsent(key, flight) == null ? flight : null;
+    }
+
+    /* 合并到进行中的相同请求，没有进行中的请求时返回false */
+    static boolean join(ByteBuffer key, Context context) {
+        SingleFlight flight = Flights.get(key);
+        if ( flight == null )
+            return false;
+        synchronized (flight) {
+            if ( flight.Done )
+                return false;
+            flight.Followers.add(context);
+        }
+        context.getStat().coalesce.incrementAndGet();
+        return true;
+    }
+
+    /* 请求结束，将结果分发给合并的请求 */
+    void complete(int code, Object data, Context leader) {
+        Flights.remove(Key, this);
+        List<Context> followers;
+        synchronized (this) {
+            Done = true;
+            followers = Followers;
+        }
+        if ( followers.isEmpty() )
+            return;
+        // 结果数据是可变的（Map/List/byte[]等），每个合并的请求都从编码后的数据解码出独立的副本
+        byte[] bytes = code == ErrorCode.OK && !isImmutable(data) ? Codec.encodeBytes(data) : null;
+        for ( Context context : followers ) {
+            Object copy = data;
+            if ( bytes != null )
+                try {
+                    copy = Codec.decodeBytes(bytes);
+                } catch (Exception e) {
+                    context.follow(ErrorCode.REQUEST, "decode coalesced result error: " + e.getMessage(), leader);
+                    continue;
+                }
+            context.follow(code, copy, leader);
+        }
+    }
+
+    /* 是否不可变的结果数据，不需要复制 */
+    static boolean isImmutable(Object data) {
+        return data == null || data instanceof String || data instanceof Number || data instanceof Boolean || data instanceof Character;
+    }
+
+    /* 请求异常 */
+    void complete(Exception e, Context leader) {
+        if ( e instanceof Context.ResultException )
+            complete(((Context.ResultException)e).Code, e.getMessage(), leader);
+        else
+            complete(ErrorCode.REQUEST, e.getMessage(), leader);
+    }
+}
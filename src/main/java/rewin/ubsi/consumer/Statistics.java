@@ -21,46 +21,114 @@ import rewin.ubsi.common.Util;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * UBSI Consumer请求统计
  */
 class Statistics {
 
+    final static int LATENCY_BUCKETS = 128;     // 响应时间分布的桶数，每个2的幂次区间分为4个桶
+    final static int LATENCY_DECAY = 1024;      // 每记录此数量的响应时间，分布数据减半（偏重最近的请求）
+    final static int LATENCY_MIN = 20;          // 记录的数量达到此值才计算P95
+
     AtomicLong  request = new AtomicLong(0);    // 计数器：总发送次数
     AtomicLong  result = new AtomicLong(0);     // 计数器：总返回次数
     AtomicLong  success = new AtomicLong(0);    // 计数器：总正常处理次数
     AtomicLong  max_time = new AtomicLong(0);   // 计时器：最长的处理时间
     String      request_id = null;              // 最长处理时间的请求ID
+    AtomicLong  cache_hit = new AtomicLong(0);  // 计数器：结果缓存的命中次数
+    AtomicLong  cache_miss = new AtomicLong(0); // 计数器：结果缓存的未命中次数
+    AtomicLong  cache_evict = new AtomicLong(0);    // 计数器：结果缓存被淘汰的次数
+    AtomicLong  coalesce = new AtomicLong(0);   // 计数器：合并到进行中的相同请求的次数
+    AtomicLong  retry = new AtomicLong(0);      // 计数器：向其他容器重试的次数
+    AtomicLong  hedge = new AtomicLong(0);      // 计数器：发出对冲请求的次数
+    AtomicLong  hedge_win = new AtomicLong(0);  // 计数器：对冲请求先返回结果的次数
+    AtomicLong  latency_count = new AtomicLong(0);  // 计数器：记录响应时间分布的次数
+    AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS); // 正常处理的响应时间分布
 
     static ConcurrentMap<String, ConcurrentMap<String, Statistics>> Records = new ConcurrentHashMap<>();
 
-    // 得到统计数据的实例
+    // 得到统计数据的实例，已经存在时不创建新的对象
     static Statistics getStatistics(String service, String entry) {
-        ConcurrentMap<String, Statistics> newmap = new ConcurrentHashMap<>();
-        ConcurrentMap<String, Statistics> map = Records.putIfAbsent(service, newmap);
-        if ( map == null )
-            map = newmap;
-        Statistics newrec = new Statistics();
-        Statistics rec = map.putIfAbsent(entry, newrec);
-        return rec == null ? newrec : rec;
-    }
-
-    /* 发送了一个请求 */
-    static void send(String service, String entry) {
-        Statistics rec = getStatistics(service, entry);
-        rec.request.incrementAndGet();
+        ConcurrentMap<String, Statistics> map = Records.get(service);
+        if ( map == null ) {
+            ConcurrentMap<String, Statistics> newmap = new ConcurrentHashMap<>();
+            map = Records.putIfAbsent(service, newmap);
+            if ( map == null )
+                map = newmap;
+        }
+        Statistics rec = map.get(entry);
+        if ( rec == null ) {
+            Statistics newrec = new Statistics();
+            rec = map.putIfAbsent(entry, newrec);
+            if ( rec == null )
+                rec = newrec;
+        }
+        return rec;
     }
 
     /* 收到了请求结果 */
-    static void recv(String service, String entry, int code, long time, String reqid) {
-        Statistics rec = getStatistics(service, entry);
+    static void recv(Statistics rec, int code, long time, Context context) {
         rec.result.incrementAndGet();
         if ( code == ErrorCode.OK )
             rec.success.incrementAndGet();
         if ( time > 0 )
             if (Util.setLarger(rec.max_time, time))
-                rec.request_id = reqid;
+                rec.request_id = context.getReqID();     // 只在刷新最长处理时间时才需要请求ID
+        if ( code == ErrorCode.OK && time >= 0 )
+            rec.addLatency(time);
+    }
+
+    /* 响应时间所在的桶 */
+    static int bucket(long time) {
+        if ( time < 4 )
+            return (int)time;
+        int b = 63 - Long.numberOfLeadingZeros(time);
+        return Math.min((b - 1) * 4 + (int)((time >> (b - 2)) & 3), LATENCY_BUCKETS - 1);
+    }
+
+    /* 桶的响应时间上限 */
+    static long bucketLimit(int index) {
+        if ( index < 4 )
+            return index;
+        int b = index / 4 + 1;
+        return ((4L + index % 4 + 1) << (b - 2)) - 1;
+    }
+
+    /* 记录响应时间 */
+    void addLatency(long time) {
+        latency.incrementAndGet(bucket(time));
+        if ( latency_count.incrementAndGet() % LATENCY_DECAY == 0 )
+            for ( int i = 0; i < LATENCY_BUCKETS; i ++ )
+                latency.set(i, latency.get(i) / 2);
+    }
+
+    /* 最近的P95响应时间（毫秒数），记录数量不足时返回0 */
+    long getP95() {
+        long[] counts = new long[LATENCY_BUCKETS];
+        long sum = 0;
+        for ( int i = 0; i < LATENCY_BUCKETS; i ++ ) {
+            counts[i] = latency.get(i);
+            sum += counts[i];
+        }
+        if ( sum < LATENCY_MIN )
+            return 0;
+        long limit = sum - sum / 20;
+        long n = 0;
+        for ( int i = 0; i < LATENCY_BUCKETS; i ++ ) {
+            n += counts[i];
+            if ( n >= limit )
+                return Math.max(bucketLimit(i), 1);
+        }
+        return bucketLimit(LATENCY_BUCKETS - 1);
+    }
+
+    /* 获得服务接口最近的P95响应时间 */
+    static long getP95(String service, String entry) {
+        ConcurrentMap<String, Statistics> map = Records.get(service);
+        Statistics rec = map == null ? null : map.get(entry);
+        return rec == null ? 0 : rec.getP95();
     }
 
 }
@@ -0,0 +1,416 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.container;
+
+import rewin.ubsi.annotation.USEntry;
+import rewin.ubsi.annotation.USParam;
+import rewin.ubsi.common.Codec;
+import rewin.ubsi.common.Util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 接口参数的绑定计划（加载时编译，请求时按参数类型直接转换，避免反射及Gson）
+ */
+class Binder {
+
+    /* 参数转换器 */
+    interface Converter {
+        Object convert(Object value) throws Exception;
+    }
+
+    final static Object NO_DEFAULT = new Object();  // 没有缺省值的标记
+
+    final Type[]        Types;          // 参数类型，不含第一个ServiceContext
+    final String[]      Names;          // 参数名字
+    final Converter[]   Converters;     // 参数转换器，null表示无需转换
+    final Object[]      Defaults;       // 预解析的缺省值，NO_DEFAULT表示没有缺省值
+    final boolean[]     Mutable;        // 缺省值是否可变（可变的缺省值每次请求生成新的实例）
+    final Exception[]   DefaultError;   // 缺省值的解析错误
+    final boolean       Annotated;      // @USParam与参数数量是否一致
+
+    Binder(Method method, USEntry annotation) {
+        Type[] types = method.getGenericParameterTypes();
+        USParam[] params = annotation.params();
+        int count = Math.max(types.length - 1, 0);
+        Types = new Type[count];
+        Names = new String[count];
+        Converters = new Converter[count];
+        Defaults = new Object[count];
+        Mutable = new boolean[count];
+        DefaultError = new Exception[count];
+        Annotated = params.length == count;
+        for ( int i = 0; i < count; i ++ ) {
+            Types[i] = types[i + 1];
+            Converters[i] = converter(Types[i]);
+            Defaults[i] = NO_DEFAULT;
+            if ( i >= params.length )
+                continue;
+            Names[i] = params[i].name();
+            String dv = Util.checkEmpty(params[i].defaultValue());
+            if ( dv == null )
+                continue;
+            try {
+                Object value = Util.json2Type(dv, Types[i]);
+                Mutable[i] = value != null && !isImmutable(value.getClass());
+                Defaults[i] = Mutable[i] ? Codec.toObject(value) : value;
+            } catch (Exception e) {
+                DefaultError[i] = e;
+            }
+        }
+    }
+
+    /* 按@USParam的名字绑定参数 */
+    Object[] bind(ServiceContext ctx, Map<String, Object> params) throws Exception {
+        Object[] res = new Object[Types.length + 1];
+        res[0] = ctx;
+        for ( int i = 0; i < Types.length && i < Names.length && Names[i] != null; i ++ ) {
+            Object value = params.get(Names[i]);
+            res[i + 1] = value == null ? getDefault(i, false) : convert(i, value);
+        }
+        return res;
+    }
+
+    /* 按位置绑定参数，不足的参数用缺省值补全 */
+    Object[] bind(Object[] param) throws Exception {
+        int count = Types.length + 1;
+        Object[] res = param;
+        if ( param.length < count && Annotated ) {
+            res = new Object[count];
+            System.arraycopy(param, 0, res, 0, param.length);
+            for ( int i = param.length; i < count; i ++ )
+                res[i] = getDefault(i - 1, true);
+        }
+        for ( int i = 1; i < count && i < param.length; i ++ )
+            res[i] = convert(i - 1, param[i]);
+        return res;
+    }
+
+    /* 转换参数 */
+    Object convert(int index, Object value) throws Exception {
+        Converter conv = Converters[index];
+        if ( conv == null || value == null )
+            return value;
+        try {
+            return conv.convert(value);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("param#" + (index + 1) + (Names[index] == null ? "" : " '" + Names[index] + "'") +
+                    " can't convert " + value.getClass().getName() + " to " + Types[index].getTypeName() + ", " + e);
+        }
+    }
+
+    /* 获取参数的缺省值 */
+    Object getDefault(int index, boolean required) throws Exception {
+        if ( DefaultError[index] != null )
+            throw DefaultError[index];
+        Object value = Defaults[index];
+        if ( value == NO_DEFAULT ) {
+            if ( required )
+                throw new Exception("no default-value for '" + Names[index] + "'");
+            return null;
+        }
+        return Mutable[index] ? convert(index, Codec.toObject(value)) : value;
+    }
+
+    /* 是否不可变的数据类型 */
+    static boolean isImmutable(Class<?> cls) {
+        return cls.isPrimitive() || cls == String.class || cls == Boolean.class || cls == Character.class ||
+                cls.isEnum() || Number.class.isAssignableFrom(cls) && (cls.getPackage() == Integer.class.getPackage() || cls.getPackage() == BigDecimal.class.getPackage());
+    }
+
+    /* 根据数据类型生成转换器，null表示无需转换 */
+    static Converter converter(Type type) {
+        if ( type instanceof Class )
+            return classConverter((Class<?>) type);
+        if ( type instanceof ParameterizedType ) {
+            ParameterizedType pt = (ParameterizedType) type;
+            Class<?> raw = (Class<?>) pt.getRawType();
+            Type[] args = pt.getActualTypeArguments();
+            if ( Collection.class.isAssignableFrom(raw) )
+                return collectionConverter(raw, converter(args[0]));
+            if ( Map.class.isAssignableFrom(raw) )
+                return mapConverter(raw, converter(args[0]), converter(args[1]));
+            return gsonConverter(type, raw);
+        }
+        if ( type instanceof GenericArrayType ) {
+            Type component = ((GenericArrayType) type).getGenericComponentType();
+            return arrayConverter(rawClass(component), converter(component));
+        }
+        if ( type instanceof WildcardType )
+            return converter(((WildcardType) type).getUpperBounds()[0]);
+        return null;    // TypeVariable
+    }
+
+    /* 获取泛型的原始类型 */
+    static Class<?> rawClass(Type type) {
+        if ( type instanceof Class )
+            return (Class<?>) type;
+        if ( type instanceof ParameterizedType )
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        if ( type instanceof GenericArrayType )
+            return Array.newInstance(rawClass(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        if ( type instanceof WildcardType )
+            return rawClass(((WildcardType) type).getUpperBounds()[0]);
+        return Object.class;
+    }
+
+    /* 非泛型类的转换器 */
+    static Converter classConverter(Class<?> cls) {
+        if ( cls == Object.class )
+            return null;
+        if ( cls.isPrimitive() )
+            return primitiveConverter(cls);
+        if ( cls == Integer.class || cls == Long.class || cls == Short.class || cls == Byte.class ||
+                cls == Double.class || cls == Float.class || cls == Boolean.class || cls == Character.class ) {
+            Converter conv = primitiveConverter(primitiveOf(cls));
+            return v -> cls.isInstance(v) ? v : conv.convert(v);
+        }
+        if ( cls == String.class )
+            return v -> v instanceof String ? v : (v instanceof CharSequence || v instanceof Number ||
+                    v instanceof Boolean || v instanceof Character) ? v.toString() : fail(v);
+        if ( cls == BigInteger.class )
+            return v -> v instanceof BigInteger ? v : v instanceof BigDecimal ? ((BigDecimal) v).toBigInteger() :
+                    v instanceof Number ? BigInteger.valueOf(((Number) v).longValue()) :
+                    v instanceof String ? new BigInteger((String) v) : fail(v);
+        if ( cls == BigDecimal.class )
+            return v -> v instanceof BigDecimal ? v : v instanceof BigInteger ? new BigDecimal((BigInteger) v) :
+                    v instanceof Double || v instanceof Float ? BigDecimal.valueOf(((Number) v).doubleValue()) :
+                    v instanceof Number ? BigDecimal.valueOf(((Number) v).longValue()) :
+                    v instanceof String ? new BigDecimal((String) v) : fail(v);
+        if ( cls.isEnum() )
+            return enumConverter(cls);
+        if ( cls.isArray() ) {
+            Class<?> component = cls.getComponentType();
+            return arrayConverter(component, converter(component));
+        }
+        if ( Collection.class.isAssignableFrom(cls) )
+            return collectionConverter(cls, null);
+        if ( Map.class.isAssignableFrom(cls) )
+            return mapConverter(cls, null, null);
+        if ( cls.getName().startsWith("java.") || cls.isInterface() || Modifier.isAbstract(cls.getModifiers()) )
+            return v -> cls.isInstance(v) ? v : fail(v);
+        return objectConverter(cls);
+    }
+
+    /* 包装类对应的基础类型 */
+    static Class<?> primitiveOf(Class<?> cls) {
+        if ( cls == Integer.class ) return int.class;
+        if ( cls == Long.class ) return long.class;
+        if ( cls == Short.class ) return short.class;
+        if ( cls == Byte.class ) return byte.class;
+        if ( cls == Double.class ) return double.class;
+        if ( cls == Float.class ) return float.class;
+        if ( cls == Boolean.class ) return boolean.class;
+        return char.class;
+    }
+
+    /* 基础数据类型的转换器（Codec将short/char编码为int，float编码为double） */
+    static Converter primitiveConverter(Class<?> cls) {
+        if ( cls == int.class )
+            return v -> v instanceof Integer ? v : v instanceof Number ? (Object) ((Number) v).intValue() :
+                    v instanceof Character ? (Object) (int) (Character) v : v instanceof String ? (Object) Integer.parseInt((String) v) : fail(v);
+        if ( cls == long.class )
+            return v -> v instanceof Long ? v : v instanceof Number ? (Object) ((Number) v).longValue() :
+                    v instanceof String ? (Object) Long.parseLong((String) v) : fail(v);
+        if ( cls == short.class )
+            return v -> v instanceof Short ? v : v instanceof Number ? (Object) ((Number) v).shortValue() :
+                    v instanceof String ? (Object) Short.parseShort((String) v) : fail(v);
+        if ( cls == byte.class )
+            return v -> v instanceof Byte ? v : v instanceof Number ? (Object) ((Number) v).byteValue() :
+                    v instanceof String ? (Object) Byte.parseByte((String) v) : fail(v);
+        if ( cls == double.class )
+            return v -> v instanceof Double ? v : v instanceof Number ? (Object) ((Number) v).doubleValue() :
+                    v instanceof String ? (Object) Double.parseDouble((String) v) : fail(v);
+        if ( cls == float.class )
+            return v -> v instanceof Float ? v : v instanceof Number ? (Object) ((Number) v).floatValue() :
+                    v instanceof String ? (Object) Float.parseFloat((String) v) : fail(v);
+        if ( cls == boolean.class )
+            return v -> v instanceof Boolean ? v : v instanceof String ? (Object) Boolean.parseBoolean((String) v) : fail(v);
+        if ( cls == char.class )
+            return v -> v instanceof Character ? v : v instanceof Number ? (Object) (char) ((Number) v).intValue() :
+                    v instanceof String && ((String) v).length() == 1 ? (Object) ((String) v).charAt(0) : fail(v);
+        return null;    // void
+    }
+
+    /* 枚举的转换器 */
+    static Converter enumConverter(Class<?> cls) {
+        Object[] values = cls.getEnumConstants();
+        return v -> {
+            if ( cls.isInstance(v) )
+                return v;
+            if ( v instanceof String ) {
+                for ( Object e : values )
+                    if ( ((Enum) e).name().equals(v) )
+                        return e;
+            } else if ( v instanceof Number ) {
+                int i = ((Number) v).intValue();
+                if ( i >= 0 && i < values.length )
+                    return values[i];
+            }
+            return fail(v);
+        };
+    }
+
+    /* 数组的转换器 */
+    static Converter arrayConverter(Class<?> component, Converter conv) {
+        Class<?> cls = Array.newInstance(component, 0).getClass();
+        return v -> {
+            if ( conv == null && cls.isInstance(v) )
+                return v;
+            Collection<?> items;
+            if ( v instanceof Object[] )
+                items = Arrays.asList((Object[]) v);
+            else if ( v instanceof Collection )
+                items = (Collection<?>) v;
+            else if ( cls.isInstance(v) )
+                return v;
+            else
+                return fail(v);
+            Object res = Array.newInstance(component, items.size());
+            int i = 0;
+            for ( Object x : items )
+                Array.set(res, i ++, conv == null || x == null ? x : conv.convert(x));
+            return res;
+        };
+    }
+
+    /* 集合的转换器 */
+    static Converter collectionConverter(Class<?> cls, Converter conv) {
+        MethodHandle creator = creator(cls, ArrayList.class, HashSet.class, TreeSet.class, ArrayDeque.class);
+        return v -> {
+            if ( conv == null && cls.isInstance(v) )
+                return v;
+            Collection<?> items;
+            if ( v instanceof Collection )
+                items = (Collection<?>) v;
+            else if ( v instanceof Object[] )
+                items = Arrays.asList((Object[]) v);
+            else
+                return fail(v);
+            @SuppressWarnings("unchecked")
+            Collection<Object> res = (Collection<Object>) create(creator, v);
+            for ( Object x : items )
+                res.add(conv == null || x == null ? x : conv.convert(x));
+            return res;
+        };
+    }
+
+    /* Map的转换器 */
+    static Converter mapConverter(Class<?> cls, Converter kconv, Converter vconv) {
+        MethodHandle creator = creator(cls, HashMap.class, TreeMap.class);
+        return v -> {
+            if ( kconv == null && vconv == null && cls.isInstance(v) )
+                return v;
+            if ( !(v instanceof Map) )
+                return fail(v);
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> res = (Map<Object, Object>) create(creator, v);
+            for ( Map.Entry<?, ?> x : ((Map<?, ?>) v).entrySet() ) {
+                Object key = x.getKey(), value = x.getValue();
+                res.put(kconv == null || key == null ? key : kconv.convert(key), vconv == null || value == null ? value : vconv.convert(value));
+            }
+            return res;
+        };
+    }
+
+    /* Value-Object的转换器，与Codec的映射规则一致：public且非static非final的字段 */
+    static Converter objectConverter(Class<?> cls) {
+        MethodHandle creator;
+        try {
+            creator = Invoker.constructor(cls);
+        } catch (Exception e) {
+            return gsonConverter(cls, cls);
+        }
+        Field[] fields = Arrays.stream(cls.getFields()).filter(fd -> {
+            int mod = fd.getModifiers();
+            return !Modifier.isStatic(mod) && !Modifier.isFinal(mod);
+        }).toArray(Field[]::new);
+        for ( Field fd : fields )
+            try { fd.setAccessible(true); } catch (Exception e) {}
+        // 字段转换器延迟编译（以支持自引用的类型），编译完成后通过AtomicReference发布给其他线程
+        AtomicReference<Converter[]> compiled = new AtomicReference<>();
+        return v -> {
+            if ( cls.isInstance(v) )
+                return v;
+            if ( !(v instanceof Map) )
+                return fail(v);
+            Converter[] convs = compiled.get();
+            if ( convs == null ) {
+                convs = new Converter[fields.length];
+                for ( int i = 0; i < fields.length; i ++ )
+                    convs[i] = converter(fields[i].getGenericType());
+                if ( !compiled.compareAndSet(null, convs) )
+                    convs = compiled.get();
+            }
+            Object res = create(creator, null);
+            Map<?, ?> map = (Map<?, ?>) v;
+            for ( int i = 0; i < fields.length; i ++ ) {
+                Object x = map.get(fields[i].getName());
+                if ( x == null )
+                    continue;
+                fields[i].set(res, convs[i] == null ? x : convs[i].convert(x));
+            }
+            return res;
+        };
+    }
+
+    /* 其他类型通过Gson转换 */
+    static Converter gsonConverter(Type type, Class<?> cls) {
+        return v -> cls.isInstance(v) && !(type instanceof ParameterizedType) ? v : Codec.toType(v, type);
+    }
+
+    /* 获取容器类的构造函数，接口或抽象类使用第一个兼容的缺省实现 */
+    static MethodHandle creator(Class<?> cls, Class<?>... defaults) {
+        Class<?> target = cls;
+        if ( cls.isInterface() || Modifier.isAbstract(cls.getModifiers()) ) {
+            target = null;
+            for ( Class<?> c : defaults )
+                if ( cls.isAssignableFrom(c) ) {
+                    target = c;
+                    break;
+                }
+        }
+        try {
+            return target == null ? null : Invoker.constructor(target);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /* 创建容器实例 */
+    static Object create(MethodHandle creator, Object value) throws Exception {
+        if ( creator == null )
+            return fail(value);
+        try {
+            return (Object) creator.invokeExact();
+        } catch (Exception e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new Exception(e);
+        }
+    }
+
+    /* 转换失败 */
+    static Object fail(Object value) {
+        throw new ClassCastException(value == null ? "null" : value.getClass().getName());
+    }
+}
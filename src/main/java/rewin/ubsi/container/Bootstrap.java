@@ -34,6 +34,7 @@ import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -77,12 +78,14 @@ public class Bootstrap {
     static AtomicLong SocketDisconnect = new AtomicLong(0); // 计数器：总断开次数
     static AtomicLong RequestTotal = new AtomicLong(0);     // 计数器：总请求次数
     static AtomicLong RequestOverload = new AtomicLong(0);  // 计数器：过载丢弃次数
+    static AtomicLong RequestExpired = new AtomicLong(0);   // 计数器：过期丢弃次数
     static AtomicLong RequestDeal = new AtomicLong(0);      // 计数器：请求处理次数
     static AtomicLong RequestOver = new AtomicLong(0);      // 计数器：请求完成次数
     static AtomicLong RequestForward = new AtomicLong(0);   // 计数器：请求转发次数
 
     static ConcurrentMap<String, Service> ServiceMap = new ConcurrentHashMap<>();       // 被加载的所有服务
     static ConcurrentLinkedQueue<Filter> FilterList = new ConcurrentLinkedQueue<>();    // 被加载的所有过滤器
+    static volatile Filter[] FilterChain = new Filter[0];   // 已启动且有@USBefore的过滤器（过滤器变化时重建）
     static String ServicePath = ".";    // 当前的运行目录
     static String ContainerVersion;     // 容器控制器的接口版本
     static Timer ServiceTimer = null;   // Service定时任务
@@ -93,6 +96,14 @@ public class Bootstrap {
     public final static String  LOG_APPID = "rewin.ubsi.container";
     public final static int     DEFAULT_PORT = 7112;    // 缺省的端口号
 
+    /* 重建过滤器链 */
+    static synchronized void buildFilterChain() {
+        List<Filter> chain = new ArrayList<>();
+        for ( Filter filter : FilterList )
+            if ( filter.Status > 0 && filter.InvokeBefore != null && !(filter instanceof Service) )
+                chain.add(filter);
+        FilterChain = chain.toArray(new Filter[chain.size()]);
+    }
     /* 查找过滤器 */
     static Filter findFilter(String name) {
         Iterator<Filter> iter = FilterList.iterator();
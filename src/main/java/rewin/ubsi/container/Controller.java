@@ -230,6 +230,7 @@ class Controller extends ControllerModule {
             try { filter.stop(filter.JClass.getName()); } catch (Exception e) {}
         }
         Bootstrap.FilterList.clear();
+        Bootstrap.buildFilterChain();
     }
 
     @USInfo
@@ -42,6 +42,7 @@ class ControllerGet {
             Info.Runtime res = new Info.Runtime();
             res.client_connection = (int)(Bootstrap.SocketConnected.get() - Bootstrap.SocketDisconnect.get());
             res.request_overload = Bootstrap.RequestOverload.get();
+            res.request_expired = Bootstrap.RequestExpired.get();
             res.request_over = Bootstrap.RequestOver.get();
             res.request_forward = Bootstrap.RequestForward.get();
             res.request_dealing = (int)(Bootstrap.RequestDeal.get() - Bootstrap.RequestOver.get());
@@ -70,6 +71,7 @@ class ControllerGet {
                 ms.request_error = srv.RequestError.get();
                 ms.request_dealing = (int)(srv.RequestDeal.get() - srv.RequestOver.get());
                 ms.singleton = srv.Single ? 1 : 0;
+                ms.scope = srv.Scope;
                 ms.dealing_timeout = timeouts[0].contains(sname);
                 res.services.put(sname, ms);
             }
@@ -86,6 +88,7 @@ class ControllerGet {
                     fr.status = filter.Status;
                     fr.time_status = filter.TimeStatus;
                     fr.dealing_timeout = timeouts[1].contains(fr.class_name);
+                    fr.scope = filter.Scope;
                     res.filters.add(fr);
                 }
             }
@@ -177,6 +177,7 @@ class ControllerModule extends ControllerSet {
             Bootstrap.ServiceMap.remove(name);
         else
             Bootstrap.FilterList.remove(module);
+        Bootstrap.buildFilterChain();
 
         Service.FlushRegister = true;       // 需要更新注册表
 
@@ -20,11 +20,15 @@ import rewin.ubsi.annotation.*;
 import rewin.ubsi.common.Util;
 
 import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import static rewin.ubsi.container.LibManager.LIB_PATH;
 
@@ -48,8 +52,10 @@ class Filter {
     Map<String, Depend> Dependency; // 依赖关系
 
     Method      EntryBefore;        // 前置接口
+    Invoker     InvokeBefore;       // 编译后的前置接口
     int         TimeoutBefore;      // 前置接口的超时时间
     Method      EntryAfter;         // 后置接口
+    Invoker     InvokeAfter;        // 编译后的后置接口
     int         TimeoutAfter;       // 后置接口的超时时间
     Method      EntryInit;          // 初始化接口
     Method      EntryClose;         // 关闭服务接口
@@ -57,6 +63,11 @@ class Filter {
     Method      EntryConfigGet;     // 读取配置接口
     Method      EntryConfigSet;     // 更改配置接口
 
+    String      Scope;              // 实例的范围
+    MethodHandle Creator;           // 编译后的构造函数
+    Object      Instance;           // 单例范围的实例
+    BlockingQueue<Object> Instances;    // 对象池范围的空闲实例
+
     volatile int Status = 0;        // 状态
     int         TimeStatus = 0;     // 状态的时间戳
 
@@ -76,6 +87,7 @@ class Filter {
         }
         TimeStatus = (int)(System.currentTimeMillis() / 1000);     // 状态时间
         Status = 1;
+        Bootstrap.buildFilterChain();
         return true;
     }
 
@@ -86,6 +98,7 @@ class Filter {
         int status = Status;
         TimeStatus = (int)(System.currentTimeMillis() / 1000);     // 状态时间
         Status = 0;
+        Bootstrap.buildFilterChain();
         if ( status == -2 )
             return true;
         if ( EntryClose != null )
@@ -101,9 +114,46 @@ class Filter {
             return false;
         TimeStatus = (int)(System.currentTimeMillis() / 1000);     // 状态时间
         Status = yes ? -1 : 1;
+        Bootstrap.buildFilterChain();
         return true;
     }
 
+    /** 设置实例的范围，instance为加载时生成的实例 */
+    void setScope(String scope, Object instance) throws Exception {
+        Scope = scope;
+        Creator = Invoker.constructor(JClass);
+        if ( UService.SCOPE_SINGLETON.equals(scope) )
+            Instance = instance;
+        else if ( UService.SCOPE_POOLED.equals(scope) )
+            Instances = new ArrayBlockingQueue<>(Math.max(Bootstrap.WorkThreads, 1));
+        else if ( !UService.SCOPE_REQUEST.equals(scope) )
+            throw new Exception(JClass.getName() + " has invalid scope: " + scope);
+    }
+
+    /** 获得处理请求的实例 */
+    Object getInstance() throws Exception {
+        if ( Instance != null )
+            return Instance;
+        if ( Instances != null ) {
+            Object o = Instances.poll();
+            if ( o != null )
+                return o;
+        }
+        try {
+            return (Object)Creator.invokeExact();
+        } catch (Exception e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /** 请求处理完毕，对象池范围的实例放回对象池（超出工作线程数时丢弃） */
+    void putInstance(Object o) {
+        if ( Instances != null )
+            Instances.offer(o);
+    }
+
     /** 加载依赖项 */
     Map<String, Depend> loadDepend(USDepend[] depends) {
         Map<String, Depend> map = new HashMap<>();
@@ -152,6 +202,7 @@ class Filter {
                 if ( EntryBefore != null )
                     throw new Exception(JClass.getName() + " has too many @USBefore");
                 EntryBefore = method;
+                InvokeBefore = new Invoker(method);
                 USBefore usBefore = (USBefore) method.getAnnotation(USBefore.class);
                 TimeoutBefore = usBefore.timeout();
                 if ( TimeoutBefore < 1 )
@@ -160,6 +211,7 @@ class Filter {
                 if ( EntryAfter != null )
                     throw new Exception(JClass.getName() + " has too many @USAfter");
                 EntryAfter = method;
+                InvokeAfter = new Invoker(method);
                 USAfter usAfter = (USAfter) method.getAnnotation(USAfter.class);
                 TimeoutAfter = usAfter.timeout();
                 if ( TimeoutAfter < 1 )
@@ -225,12 +277,13 @@ class Filter {
         try {
             if ( ! filter.JClass.isAnnotationPresent(USFilter.class) )
                 throw new Exception(className + " is not a UBSI Filter");
-            filter.JClass.newInstance();     // 测试是否能正常生成对象
+            Object instance = filter.JClass.newInstance();     // 测试是否能正常生成对象
             filter.JarLib = gav;
             USFilter us = (USFilter) filter.JClass.getAnnotation(USFilter.class);
             filter.Tips = us.tips();
             filter.Version = Util.getVersion(us.version());
             filter.Release = us.release();
+            filter.setScope(us.scope(), instance);
             filter.Dependency = filter.loadDepend(us.depend());
             for ( Method method : filter.JClass.getMethods() )
                 filter.checkMethod(method);
@@ -53,6 +53,13 @@ class IOHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {    // 有数据到达
         ServiceContext sc = new ServiceContext(ctx.channel(), msg);
+        if ( sc.isExpired() ) {
+            // 已超过Consumer的截止时间
+            Bootstrap.RequestExpired.incrementAndGet();
+            sc.setResult(ErrorCode.EXPIRED, "request expired");
+            sc.response();
+            return;
+        }
         // 限流
         if ( Bootstrap.RequestTotal.get() - Bootstrap.RequestDeal.get() >= Bootstrap.Overload ) {
             // 请求过载
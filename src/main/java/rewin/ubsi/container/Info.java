@@ -45,6 +45,7 @@ public class Info {
         public int      status;             // 运行状态
         public int      time_status;        // 状态的时间
         public boolean  dealing_timeout;    // 正在处理的请求中是否有超时的
+        public String   scope;              // 实例的范围
     }
 
     /** 微服务的当前运行状态 */
@@ -59,6 +60,7 @@ public class Info {
     public static class Runtime {
         public int      client_connection;  // 当前连接数
         public long     request_overload;   // 总丢弃数量
+        public long     request_expired;    // 过期丢弃数量（已超过Consumer的截止时间）
         public long     request_over;       // 总处理数量（包含转发/失败等）
         public long     request_forward;    // 总转发数量
         public int      request_dealing;    // 正在处理的数量
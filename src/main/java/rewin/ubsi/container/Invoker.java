@@ -0,0 +1,59 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.container;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * 编译后的接口调用（加载时生成MethodHandle，避免每次请求的反射调用）
+ */
+class Invoker {
+
+    final static MethodType INVOKE_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    final MethodHandle  Handle;     // 统一为 (Object, Object[])Object 的调用句柄
+
+    Invoker(Method method) throws Exception {
+        if ( !method.isAccessible() )
+            try { method.setAccessible(true); } catch (Exception e) {}
+        Handle = MethodHandles.lookup().unreflect(method)
+                .asSpreader(Object[].class, method.getParameterCount())
+                .asType(INVOKE_TYPE);
+    }
+
+    /** 编译类的无参数构造函数，返回 ()Object 的调用句柄 */
+    static MethodHandle constructor(Class<?> cls) throws Exception {
+        Constructor<?> ctor = cls.getDeclaredConstructor();
+        if ( !ctor.isAccessible() )
+            try { ctor.setAccessible(true); } catch (Exception e) {}
+        return MethodHandles.lookup().unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+    }
+
+    /** 调用接口，与Method.invoke()相同，接口的异常封装为InvocationTargetException */
+    Object invoke(Object o, Object... args) throws Exception {
+        try {
+            return (Object)Handle.invokeExact(o, args);
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+}
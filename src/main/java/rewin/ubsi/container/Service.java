@@ -27,6 +27,7 @@ import java.io.File;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -37,6 +38,9 @@ class Service extends Filter {
     /** 接口定义 */
     static class Entry {
         Method      JMethod;        // Method实例
+        Invoker     JInvoker;       // 编译后的调用
+        Binder      JBinder;        // 参数绑定计划
+        boolean     Async;          // 是否异步接口（返回CompletionStage）
         USEntry     JAnnotation;    // 注解
         AtomicLong  RequestDeal = new AtomicLong(0);    // 计数器：请求处理次数
         AtomicLong  RequestOver = new AtomicLong(0);    // 计数器：请求完成次数
@@ -106,7 +110,7 @@ class Service extends Filter {
         try {
             if ( ! srv.JClass.isAnnotationPresent(UService.class) )
                 throw new Exception(className + " is not a UBSI Service");
-            srv.JClass.newInstance();     // 测试是否能正常生成对象
+            Object instance = srv.JClass.newInstance();     // 测试是否能正常生成对象
             srv.JarLib = gav;
             UService us = (UService)srv.JClass.getAnnotation(UService.class);
             srv.Name = us.name();
@@ -114,6 +118,7 @@ class Service extends Filter {
             srv.Version = Util.getVersion(us.version());
             srv.Release = us.release();
             srv.Single = us.singleton();
+            srv.setScope(us.scope(), instance);
             srv.Dependency = srv.loadDepend(us.depend());
             for ( Method method : srv.JClass.getMethods() ) {
                 if ( ! Modifier.isStatic(method.getModifiers()) ) {
@@ -124,7 +129,10 @@ class Service extends Filter {
                             throw new Exception(srv.JClass.getName() + " has too many " + mname + "()");
                         Entry entry = new Entry();
                         entry.JMethod = method;
+                        entry.JInvoker = new Invoker(method);
                         entry.JAnnotation = usEntry;
+                        entry.JBinder = new Binder(method, usEntry);
+                        entry.Async = CompletionStage.class.isAssignableFrom(method.getReturnType());
                         srv.EntryMap.put(mname, entry);
                     }
                 }
@@ -178,6 +186,9 @@ class Service extends Filter {
                 container.Waiting = (int) (Bootstrap.RequestTotal.get() - Bootstrap.RequestDeal.get());
                 container.Deal = Bootstrap.RequestOver.get();
                 container.Timestamp = t;
+                container.Host = Context.getLocalHost();
+                container.Zone = Context.getZone();
+                container.StreamID = true;
                 for (String sname : Bootstrap.ServiceMap.keySet()) {
                     Service srv = Bootstrap.ServiceMap.get(sname);
                     if (srv == null)
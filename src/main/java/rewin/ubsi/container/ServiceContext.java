@@ -18,7 +18,6 @@ package rewin.ubsi.container;
 
 import io.netty.channel.Channel;
 import rewin.ubsi.annotation.USEntry;
-import rewin.ubsi.annotation.USParam;
 import rewin.ubsi.common.IOData;
 import rewin.ubsi.common.JedisUtil;
 import rewin.ubsi.common.LogUtil;
@@ -40,8 +39,10 @@ public class ServiceContext {
 
     Channel     Sock;
     InetAddress Remote;
+    Object      ReqTag;         // 请求的关联标识（Consumer的连接流ID，或者消息模式下的请求ID）
     String      ReqID;          // 请求的ID
     Map<String,Object> Header;  // 请求头
+    long        Deadline;       // 请求的截止时间（毫秒时间戳），0表示不限
     String      Service;        // 服务名字
     String      Entry;          // 方法名字
     Object[]    Param;          // 参数
@@ -63,25 +64,25 @@ public class ServiceContext {
         Sock = ch;
         Remote = ((InetSocketAddress)ch.remoteAddress()).getAddress();
         Object[] req = (Object[]) data;
-        ReqID = (String) req[0];
+        ReqTag = req[0];
         Header = (Map)req[1];
         Service = (String) req[2];
         Param = (Object[]) req[3];
         Flag = (Byte) req[4];
         Entry = (String) Param[0];
         Param[0] = this;
-        if ( ReqID == null || ReqID.length() == 0 || Service == null )
+        if ( ReqTag instanceof String )
+            ReqID = (String) ReqTag;        // 旧版本的Consumer、消息模式，或者Consumer未从注册数据得知本容器支持流ID
+        else if ( Header != null && Header.get(Context.HEADER_REQ_ID) instanceof String )
+            ReqID = (String) Header.get(Context.HEADER_REQ_ID);
+        if ( Header != null && Header.get(Context.HEADER_REQ_DEADLINE) instanceof Number )
+            Deadline = ((Number) Header.get(Context.HEADER_REQ_DEADLINE)).longValue();
+        if ( ReqTag == null || (ReqTag instanceof String && ((String)ReqTag).isEmpty()) || Service == null )
             throw new Exception("bad request");
         if ( Entry == null )
             Entry = "";
     }
 
-    /* 转换参数的defaultValue */
-    Object getDefaultValue(Type type, String value) {
-        if ( type.getClass().isInstance(value) )
-            return value;
-        return Util.json2Type(value, type);
-    }
     /* 处理参数 */
     boolean prepareParams(Service.Entry entry) {
         try {
@@ -89,41 +90,11 @@ public class ServiceContext {
                 // 从header中获取请求参数，since 2.0.1
                 Map<String, Object> params = (Map)Header.get(Context.HEADER_REQ_PARAMS);
                 if ( params != null ) {
-                    Type[] types = entry.JMethod.getGenericParameterTypes();
-                    USParam[] usParams = entry.JAnnotation.params();
-                    Object[] param = new Object[usParams.length + 1];
-                    for ( int i = 0; i < usParams.length; i ++ ) {
-                        param[i+1] = params.get(usParams[i].name());
-                        if ( param[i+1] == null ) {
-                            String dv = Util.checkEmpty(usParams[i].defaultValue());
-                            if ( dv != null )
-                                param[i+1] = getDefaultValue(types[i+1], dv);
-                        }
-                    }
-                    param[0] = this;
-                    Param = param;
+                    Param = entry.JBinder.bind(this, params);
                     return true;
                 }
             }
-
-            Type[] types = entry.JMethod.getGenericParameterTypes();
-            if ( types.length <= Param.length )
-                return true;
-            USParam[] usParams = entry.JAnnotation.params();
-            if ( usParams.length + 1 != types.length )
-                return true;
-            Object[] params = new Object[types.length];
-            for ( int i = 0; i < types.length; i ++ ) {
-                if ( i < Param.length )
-                    params[i] = Param[i];
-                else {
-                    String dv = Util.checkEmpty(usParams[i-1].defaultValue());
-                    if ( dv == null )
-                        throw new Exception("no default-value for '" + usParams[i-1].name() + "'");
-                    params[i] = getDefaultValue(types[i], dv);
-                }
-            }
-            Param = params;
+            Param = entry.JBinder.bind(Param);
             return true;
         } catch (Exception e) {
             setResult(ErrorCode.PARAMS, Service + "#" + Entry + "() params error, " + e);
@@ -136,19 +107,24 @@ public class ServiceContext {
     void response() {
         if ( (Flag & Context.FLAG_DISCARD) != 0 )
             return;
-        Object[] resp = Tailer == null ? new Object[] { ReqID, (byte)ResultCode, ResultData } :
-                new Object[] { ReqID, (byte)ResultCode, ResultData, Tailer };
+        Object[] resp = Tailer == null ? new Object[] { ReqTag, (byte)ResultCode, ResultData } :
+                new Object[] { ReqTag, (byte)ResultCode, ResultData, Tailer };
         if ( (Flag & Context.FLAG_MESSAGE) != 0 ) {
             if (!JedisUtil.isInited())
                 return;
             try {
-                JedisUtil.publish(Context.CHANNEL_NOTIFY, resp);
+                JedisUtil.publish(getReplyChannel(), resp);
             } catch (Exception e) {
                 Bootstrap.log(LogUtil.ERROR, "message", e);
             }
         } else
             IOData.write(Sock, resp);
     }
+    /* 消息模式的结果发送到请求的回复频道，早期版本的Consumer没有回复频道 */
+    String getReplyChannel() {
+        Object reply = Header == null ? null : Header.get(Context.HEADER_REQ_REPLY);
+        return reply instanceof String ? (String)reply : Context.CHANNEL_NOTIFY;
+    }
 
     /* 获得服务所在目录 */
     static String getLocalPath(String name, String dir) {
@@ -180,10 +156,20 @@ public class ServiceContext {
     public InetSocketAddress getConsumerAddress() {
         return (InetSocketAddress)Sock.remoteAddress();
     }
-    /** 获得请求ID */
+    /** 获得请求ID，Consumer没有提供时生成新的ID */
     public String getRequestID() {
+        if ( ReqID == null )
+            ReqID = Util.getUUID();
         return ReqID;
     }
+    /** 获得请求的截止时间(毫秒时间戳)，0表示Consumer未设置，嵌套的请求会继承剩余的时间 */
+    public long getDeadline() {
+        return Deadline;
+    }
+    /* 是否已超过截止时间 */
+    boolean isExpired() {
+        return Deadline > 0 && System.currentTimeMillis() >= Deadline;
+    }
     /** 设置Header数据项 */
     public void setHeader(String key, Object value) {
         if ( Header == null )
@@ -404,14 +390,19 @@ public class ServiceContext {
                 context.setVersion(depend.VerMin, depend.VerMax, depend.Release);
         }
         if ( isForceLog() )
-            context.setSeqID(ReqID);
+            context.setSeqID(getRequestID());
+        if ( Deadline > 0 )
+            context.setDeadline(Deadline);      // 继承本请求剩余的时间
         return context;
     }
     /* 转发请求 */
     void forward() throws Exception {
-        if ( Header == null )
-            Header = new HashMap<>();
-        String forwardPath = (String)Header.get(Context.HEADER_REQ_FORWARD);
+        // 复制请求头并去掉传输项（回复频道/请求ID/截止时间），由转发请求重新设置；原请求头在返回结果时还要使用
+        Map<String,Object> header = Header == null ? new HashMap<>() : new HashMap<>(Header);
+        header.remove(Context.HEADER_REQ_REPLY);
+        header.remove(Context.HEADER_REQ_ID);
+        header.remove(Context.HEADER_REQ_DEADLINE);
+        String forwardPath = (String)header.get(Context.HEADER_REQ_FORWARD);
         String ctn = ";" + Bootstrap.Host + "#" + Bootstrap.Port;
         if ( Util.checkEmpty(forwardPath) == null )
             forwardPath = Remote.getHostAddress() + ctn;
@@ -421,12 +412,15 @@ public class ServiceContext {
             if ( has )
                 throw new Exception("forward path loopback -> " + forwardPath);
         }
-        Header.put(Context.HEADER_REQ_FORWARD, forwardPath);
+        header.put(Context.HEADER_REQ_FORWARD, forwardPath);
 
         Context context = Context.request(Service, Param)
-                .setHeader(Header)
+                .setHeader(header)
                 .setTimeout(Bootstrap.Forward)
+                .setDeadline(Deadline)
                 .setLogAccess((Flag & Context.FLAG_LOG) != 0);
+        if ( (Flag & Context.FLAG_LOG) != 0 )
+            context.setSeqID(getRequestID());   // 转发请求的日志关联到原请求
         boolean discard = (Flag & Context.FLAG_DISCARD) != 0;
         if ( discard )
             context.callAsync(null, false);
@@ -21,11 +21,9 @@ import rewin.ubsi.common.Util;
 import rewin.ubsi.consumer.ErrorCode;
 import rewin.ubsi.consumer.LogBody;
 
-import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 /**
  * UBSI请求处理
@@ -43,7 +41,7 @@ class WorkHandler implements Runnable {
         public String   Client;             // 客户端名字/IP
     }
 
-    static ConcurrentMap<String, Deal>  Dealing = new ConcurrentHashMap<>();
+    static ConcurrentMap<ServiceContext, Deal>  Dealing = new ConcurrentHashMap<>();
 
     static Set<String>[] getTimeoutDeal() {
         Set<String>[] res = new Set[] { new HashSet<String>(), new HashSet<String>() };
@@ -72,41 +70,40 @@ class WorkHandler implements Runnable {
     }
 
     static void clearDealing(String name) {
-        List<String> list = new ArrayList<>();
-        for ( String key : Dealing.keySet() ) {
+        List<ServiceContext> list = new ArrayList<>();
+        for ( ServiceContext key : Dealing.keySet() ) {
             Deal deal = Dealing.get(key);
             if ( deal != null && deal.Service.equals(name)  )
                 list.add(key);
         }
-        for ( String key : list )
+        for ( ServiceContext key : list )
             Dealing.remove(key);
     }
 
     ////////////////////////////////////////////////////
 
     ServiceContext      SContext;
-    Map<String, Object> FilterObject = new HashMap<>();
+    Filter[]            Filters;            // 本次请求使用的过滤器链
+    Object[]            FilterObject;       // 非单例范围的过滤器实例（没有时不分配）
+    int                 FilterCount = 0;    // 执行过@USBefore的过滤器数量
 
     public WorkHandler(ServiceContext sc) {
         SContext = sc;
     }
 
     void doFilter(Deal deal, int interceptor) {
-        if ( Bootstrap.FilterList.isEmpty() )
+        if ( interceptor < 0 )
+            Filters = Bootstrap.FilterChain;
+        Filter[] filters = Filters;
+        if ( filters == null )
             return;
-        Object[] filters = Bootstrap.FilterList.toArray();
-        if ( interceptor > 0 ) {
-            for ( int i = 0; i < filters.length / 2; i ++ ) {
-                Object f = filters[i];
-                filters[i] = filters[filters.length - 1 - i];
-                filters[filters.length - 1 - i] = f;
-            }
-        }
-        for ( int i = 0; i < filters.length; i ++ ) {
-            Filter filter = (Filter)filters[i];
+        int count = interceptor < 0 ? filters.length : FilterCount;
+        for ( int n = 0; n < count; n ++ ) {
+            int i = interceptor < 0 ? n : count - 1 - n;    // 后置接口按相反的顺序执行
+            Filter filter = filters[i];
             if ( filter.Status <= 0 )
                 continue;
-            Method method = interceptor < 0 ? filter.EntryBefore : filter.EntryAfter;
+            Invoker method = interceptor < 0 ? filter.InvokeBefore : filter.InvokeAfter;
             if ( method == null )
                 continue;
             synchronized (deal) {
@@ -116,13 +113,18 @@ class WorkHandler implements Runnable {
                 deal.DealTime = System.nanoTime();
             }
             try {
-                Object o = FilterObject.get(deal.InFilter);
-                if ( o == null ) {
-                    if ( interceptor > 0 )
+                Object o = filter.Instance;
+                if ( interceptor > 0 ) {
+                    if ( o == null && (o = FilterObject == null ? null : FilterObject[i]) == null )
                         continue;
-                    o = filter.JClass.newInstance();
-                    FilterObject.put(deal.InFilter, o);
+                } else if ( o == null ) {
+                    o = filter.getInstance();
+                    if ( FilterObject == null )
+                        FilterObject = new Object[filters.length];
+                    FilterObject[i] = o;
                 }
+                if ( interceptor < 0 )
+                    FilterCount = i + 1;    // 执行过@USBefore的过滤器才执行@USAfter
                 SContext.Filter = deal.InFilter;
                 method.invoke(o, SContext);
             } catch (Exception e) {
@@ -136,6 +138,16 @@ class WorkHandler implements Runnable {
         SContext.Filter = null;
     }
 
+    /* 回收过滤器实例 */
+    void releaseFilter() {
+        if ( FilterObject == null )
+            return;
+        for ( int i = 0; i < FilterObject.length; i ++ )
+            if ( FilterObject[i] != null )
+                Filters[i].putInstance(FilterObject[i]);
+        FilterObject = null;
+    }
+
     public void run() {
         Deal deal = new Deal();
         Bootstrap.RequestDeal.incrementAndGet();
@@ -145,9 +157,13 @@ class WorkHandler implements Runnable {
 
         boolean isForceLog = SContext.isForceLog();
         if ( isForceLog )
-            Bootstrap.log(LogUtil.ACCESS, "enter", new LogBody.Enter(SContext.ReqID, SContext.Service, SContext.Entry, SContext.Flag, deal.Client));
+            Bootstrap.log(LogUtil.ACCESS, "enter", new LogBody.Enter(SContext.getRequestID(), SContext.Service, SContext.Entry, SContext.Flag, deal.Client));
 
-        if ( Bootstrap.TimeoutFuse > 0 ) {
+        if ( SContext.isExpired() ) {
+            // 在队列中等待超过了Consumer的截止时间
+            Bootstrap.RequestExpired.incrementAndGet();
+            SContext.setResult(ErrorCode.EXPIRED, deal.Service + "#" + deal.Entry + "() expired in queue");
+        } else if ( Bootstrap.TimeoutFuse > 0 ) {
             int timeout_count = 0;
             for ( Deal dealing : Dealing.values() ) {
                 if ( !deal.Service.equals(dealing.Service) )
@@ -168,7 +184,7 @@ class WorkHandler implements Runnable {
                 }
             }
         }
-        Dealing.put(SContext.ReqID, deal);
+        Dealing.put(SContext, deal);
 
         if ( !SContext.Result ) {
             Service srv = Bootstrap.ServiceMap.get(SContext.Service);
@@ -208,79 +224,152 @@ class WorkHandler implements Runnable {
                             SContext.setResult(ErrorCode.REJECT, SContext.Service + "#" + SContext.Entry + "() access denied"); // 拒绝访问
                         else {
                             entry.RequestDeal.incrementAndGet();
-                            Object o = null;
-                            long t = 0;
-                            boolean interceptor = false;
-                            try {
-                                o = srv.JClass.newInstance();
-                                if (srv.EntryBefore != null) {
-                                    synchronized (deal) {
-                                        deal.Interceptor = -1;
-                                        deal.Timeout = srv.TimeoutBefore;
-                                        deal.DealTime = System.nanoTime();
-                                    }
-                                    interceptor = true;
-                                    srv.EntryBefore.invoke(o, SContext);
-                                    interceptor = false;
-                                }
-                                if (!SContext.Result) {
-                                    synchronized (deal) {
-                                        deal.Interceptor = 0;
-                                        deal.Timeout = entry.JAnnotation.timeout();
-                                        if ( deal.Timeout < 1 )
-                                            deal.Timeout = 1;
-                                        deal.DealTime = System.nanoTime();
-                                    }
-                                    t = System.currentTimeMillis();
-                                    Object res = entry.JMethod.invoke(o, SContext.Param);
-                                    t = System.currentTimeMillis() - t;
-                                    SContext.setResultData(res);
-                                }
-                            } catch (Exception e) {
-                                entry.RequestError.incrementAndGet();
-                                srv.RequestError.incrementAndGet();
-                                SContext.setResultException(e);
-                                Bootstrap.log(LogUtil.ERROR, deal.Service + "#" + deal.Entry + "()" + (interceptor ? "@Before" : "@invoke"), e);
-                            } finally {
-                                if (o != null && srv.EntryAfter != null) {
-                                    synchronized (deal) {
-                                        deal.Interceptor = 1;
-                                        deal.Timeout = srv.TimeoutAfter;
-                                        deal.DealTime = System.nanoTime();
-                                    }
-                                    try {
-                                        srv.EntryAfter.invoke(o, SContext);
-                                    } catch (Exception e) {
-                                        if ( !SContext.hasResult() || SContext.getResultCode() == ErrorCode.OK ) {
-                                            entry.RequestError.incrementAndGet();
-                                            srv.RequestError.incrementAndGet();
-                                            SContext.setResultException(e);
-                                        }
-                                        Bootstrap.log(LogUtil.ERROR, deal.Service + "#" + deal.Entry + "()@After", e);
-                                    }
-                                    synchronized (deal) {
-                                        deal.Interceptor = 0;
-                                        deal.Timeout = 0;
-                                    }
-                                }
-                                if ( t > 0 )
-                                    if (Util.setLarger(entry.RequestTime, t))
-                                        entry.RequestID = SContext.ReqID;
-                            }
-                            entry.RequestOver.incrementAndGet();
+                            if ( invokeEntry(deal, srv, entry, isForceLog) )
+                                return;     // 异步接口，完成时继续处理
                         }
                     }
                     srv.RequestOver.incrementAndGet();
                 }
-                doFilter(deal, 1);
+                afterFilter(deal);
+            }
+        }
+        leave(deal, isForceLog);
+    }
+
+    /* 调用接口，返回true表示异步接口尚未完成 */
+    boolean invokeEntry(Deal deal, Service srv, Service.Entry entry, boolean isForceLog) {
+        Object o = null;
+        long t = 0;
+        boolean interceptor = false;
+        try {
+            o = srv.getInstance();
+            if (srv.InvokeBefore != null) {
+                synchronized (deal) {
+                    deal.Interceptor = -1;
+                    deal.Timeout = srv.TimeoutBefore;
+                    deal.DealTime = System.nanoTime();
+                }
+                interceptor = true;
+                srv.InvokeBefore.invoke(o, SContext);
+                interceptor = false;
+            }
+            if (!SContext.Result) {
                 synchronized (deal) {
-                    deal.InFilter = null;
                     deal.Interceptor = 0;
-                    deal.Timeout = 0;
+                    deal.Timeout = entry.JAnnotation.timeout();
+                    if ( deal.Timeout < 1 )
+                        deal.Timeout = 1;
+                    deal.DealTime = System.nanoTime();
+                }
+                t = System.currentTimeMillis();
+                Object res = entry.JInvoker.invoke(o, SContext.Param);
+                if ( entry.Async && res != null ) {
+                    CompletableFuture<?> future = ((CompletionStage<?>)res).toCompletableFuture();
+                    if ( !future.isDone() ) {
+                        Object obj = o;
+                        long start = t;
+                        future.whenComplete((data, e) -> {
+                            Runnable resume = () -> {
+                                complete(deal, entry, srv, data, e);
+                                afterEntry(deal, srv, entry, obj, System.currentTimeMillis() - start);
+                                srv.RequestOver.incrementAndGet();
+                                afterFilter(deal);
+                                leave(deal, isForceLog);
+                            };
+                            ExecutorService workGroup = Bootstrap.WorkGroup;
+                            if ( workGroup == null || workGroup.isShutdown() )
+                                resume.run();
+                            else
+                                try {
+                                    workGroup.execute(resume);     // @USAfter及过滤器的后置接口回到工作线程中执行
+                                } catch (RejectedExecutionException ee) {
+                                    resume.run();
+                                }
+                        });
+                        return true;
+                    }
+                    t = System.currentTimeMillis() - t;
+                    Object data = null;
+                    Throwable error = null;
+                    try {
+                        data = future.join();
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+                    complete(deal, entry, srv, data, error);
+                } else {
+                    t = System.currentTimeMillis() - t;
+                    SContext.setResultData(res);
                 }
-                FilterObject.clear();
             }
+        } catch (Exception e) {
+            entry.RequestError.incrementAndGet();
+            srv.RequestError.incrementAndGet();
+            SContext.setResultException(e);
+            Bootstrap.log(LogUtil.ERROR, deal.Service + "#" + deal.Entry + "()" + (interceptor ? "@Before" : "@invoke"), e);
         }
+        afterEntry(deal, srv, entry, o, t);
+        return false;
+    }
+
+    /* 设置异步接口的结果 */
+    void complete(Deal deal, Service.Entry entry, Service srv, Object data, Throwable e) {
+        if ( e == null ) {
+            SContext.setResultData(data);
+            return;
+        }
+        if ( e instanceof CompletionException && e.getCause() != null )
+            e = e.getCause();
+        entry.RequestError.incrementAndGet();
+        srv.RequestError.incrementAndGet();
+        SContext.setResultException(e instanceof Exception ? (Exception)e : new InvocationTargetException(e));
+        Bootstrap.log(LogUtil.ERROR, deal.Service + "#" + deal.Entry + "()@invoke", e);
+    }
+
+    /* 接口调用结束：执行@USAfter，回收服务实例，记录统计 */
+    void afterEntry(Deal deal, Service srv, Service.Entry entry, Object o, long t) {
+        if (o != null && srv.InvokeAfter != null) {
+            synchronized (deal) {
+                deal.Interceptor = 1;
+                deal.Timeout = srv.TimeoutAfter;
+                deal.DealTime = System.nanoTime();
+            }
+            try {
+                srv.InvokeAfter.invoke(o, SContext);
+            } catch (Exception e) {
+                if ( !SContext.hasResult() || SContext.getResultCode() == ErrorCode.OK ) {
+                    entry.RequestError.incrementAndGet();
+                    srv.RequestError.incrementAndGet();
+                    SContext.setResultException(e);
+                }
+                Bootstrap.log(LogUtil.ERROR, deal.Service + "#" + deal.Entry + "()@After", e);
+            }
+        }
+        synchronized (deal) {
+            deal.Interceptor = 0;
+            deal.Timeout = 0;
+        }
+        if ( o != null )
+            srv.putInstance(o);
+        if ( t > 0 )
+            if (Util.setLarger(entry.RequestTime, t))
+                entry.RequestID = SContext.getRequestID();
+        entry.RequestOver.incrementAndGet();
+    }
+
+    /* 执行过滤器的后置接口 */
+    void afterFilter(Deal deal) {
+        doFilter(deal, 1);
+        synchronized (deal) {
+            deal.InFilter = null;
+            deal.Interceptor = 0;
+            deal.Timeout = 0;
+        }
+        releaseFilter();
+    }
+
+    /* 返回结果，结束请求处理 */
+    void leave(Deal deal, boolean isForceLog) {
         if ( !SContext.Forwarded && SContext.Result )
             try {
                 SContext.response();
@@ -288,10 +377,10 @@ class WorkHandler implements Runnable {
                 Bootstrap.log(LogUtil.ERROR, deal.Service + "#" + deal.Entry + "()@response", e);
             }
         if ( isForceLog )
-            Bootstrap.log(LogUtil.ACCESS, "leave", new LogBody.Result(SContext.ReqID, SContext.Service, SContext.Entry,
+            Bootstrap.log(LogUtil.ACCESS, "leave", new LogBody.Result(SContext.getRequestID(), SContext.Service, SContext.Entry,
                     SContext.Result ? SContext.ResultCode : null, SContext.Result ? SContext.ResultData : null,
                     TimeUnit.MILLISECONDS.convert(System.nanoTime() - deal.StartTime, TimeUnit.NANOSECONDS)));
         Bootstrap.RequestOver.incrementAndGet();
-        Dealing.remove(SContext.ReqID);
+        Dealing.remove(SContext);
     }
 }
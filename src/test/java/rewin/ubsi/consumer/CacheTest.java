@@ -0,0 +1,148 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rewin.ubsi.consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 请求结果缓存（LRU及字节数限制）的单元测试
+ */
+public class CacheTest {
+
+    final static String SERVICE = "cache.test";
+
+    int cacheSize;
+
+    @Before
+    public void before() {
+        cacheSize = Context.CacheSize;
+        Context.CacheSize = 1;      // 1MB
+        clear();
+    }
+
+    @After
+    public void after() {
+        Context.CacheSize = cacheSize;
+        clear();
+    }
+
+    static void clear() {
+        synchronized (Cache.Items) {
+            Cache.Items.clear();
+            Cache.Size = 0;
+        }
+    }
+
+    static Context request(Object... entryAndParams) throws Exception {
+        return Context.request(SERVICE, entryAndParams);
+    }
+
+    /* 保存结果，返回缓存的键值 */
+    static ByteBuffer put(Context context, Object data, int ttl) {
+        ByteBuffer key = SingleFlight.getKey(context);
+        Cache.put(key, context, data, ttl);
+        return key;
+    }
+
+    @Test
+    public void hit() throws Exception {
+        List<Object> data = new ArrayList<>(Arrays.asList("a", 1));
+        ByteBuffer key = put(request("get", 1), data, 10);
+        Context context = request("get", 1);
+        assertTrue(Cache.get(SingleFlight.getKey(context), context));
+        assertEquals(data, context.getResultData());
+        assertNotSame(data, context.getResultData());       // 每次命中都解码出独立的副本
+        assertFalse(Cache.get(SingleFlight.getKey(request("get", 2)), request("get", 2)));
+
+        Cache.Items.get(key).Expire = System.currentTimeMillis() - 1;
+        assertFalse(Cache.get(key, request("get", 1)));
+        assertTrue(Cache.Items.isEmpty());
+        assertEquals(0, Cache.Size);
+    }
+
+    @Test
+    public void ttl() throws Exception {
+        Context context = request("get", 1);
+        put(context, "x", 0);
+        assertTrue(Cache.Items.isEmpty());
+        // 容器通过Tailer提示的缓存时间优先
+        context.setTailer(Context.TAILER_CACHE, 5);
+        put(context, "x", 0);
+        assertEquals(1, Cache.Items.size());
+        Context other = request("get", 2);
+        other.setTailer(Context.TAILER_CACHE, 0);
+        put(other, "x", 10);
+        assertEquals(1, Cache.Items.size());
+    }
+
+    @Test
+    public void lru() throws Exception {
+        byte[] data = new byte[50000];
+        List<ByteBuffer> keys = new ArrayList<>();
+        for ( int i = 0; i < 20; i ++ )
+            keys.add(put(request("get", i), data, 10));
+        assertEquals(20, Cache.Items.size());
+        assertTrue(Cache.get(keys.get(0), request("get", 0)));     // 访问后成为最近使用的
+        for ( int i = 20; i < 25; i ++ )
+            keys.add(put(request("get", i), data, 10));
+        assertTrue(Cache.Size <= 1024 * 1024);
+        assertTrue(Cache.Items.containsKey(keys.get(0)));
+        assertFalse(Cache.Items.containsKey(keys.get(1)));
+        assertTrue(Cache.Items.containsKey(keys.get(24)));
+
+        long size = 0;
+        for ( Cache.Item item : Cache.Items.values() )
+            size += item.Size;
+        assertEquals(size, Cache.Size);
+
+        Context.CacheSize = 0;
+        Cache.trim();
+        assertTrue(Cache.Items.isEmpty());
+        assertEquals(0, Cache.Size);
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        put(request("get", 1), new byte[1024 * 1024 / 16], 10);
+        assertTrue(Cache.Items.isEmpty());
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        put(request("get", 1), "a", 10);
+        put(request("get", 2), "b", 10);
+        put(request("list"), "c", 10);
+        put(Context.request("cache.other", "get", 1), "d", 10);
+        Cache.invalidate(SERVICE, "get", new Object[] { 1 });
+        assertEquals(3, Cache.Items.size());
+        Cache.invalidate(new Object[] { SERVICE, "get" });
+        assertEquals(2, Cache.Items.size());
+        Cache.invalidate(SERVICE, null, null);
+        assertEquals(1, Cache.Items.size());
+        assertEquals(Cache.Items.values().iterator().next().Size, Cache.Size);
+    }
+}
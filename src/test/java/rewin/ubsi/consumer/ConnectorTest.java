@@ -0,0 +1,374 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rewin.ubsi.common.Codec;
+import rewin.ubsi.common.IOData;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 连接及等待结果的请求管理的单元测试
+ */
+public class ConnectorTest {
+
+    final static String SERVICE = "connector.test";
+    final static String ADDR = "connector-test#7112";
+
+    Channel channel;
+    int concurrencyMax;
+
+    @Before
+    public void before() {
+        concurrencyMax = Context.ConcurrencyMax;
+        IOHandler.IOGroup = new DefaultEventLoopGroup(1);
+        IOHandler.IOTimer = new Timer(true);
+        IOHandler.IOWheel = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+        channel = new EmbeddedChannel();
+        Connector.ChannelContext.put(channel, new Connector.Streams("connector-test", 7112));
+    }
+
+    @After
+    public void after() {
+        IOHandler.close();
+        Connector.ChannelContext.remove(channel);
+        Context.ConcurrencyMax = concurrencyMax;
+        Limiter.Containers.clear();
+        Health.Containers.clear();
+    }
+
+    /* 异步请求，结果放入future */
+    static Context request(CompletableFuture<Integer> future) throws Exception {
+        Context context = Context.request(SERVICE, "get");
+        context.TargetContainer = ADDR;
+        context.RequestTime = System.currentTimeMillis();
+        context.Notify = (code, data) -> future.complete(code);
+        return context;
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Context context = request(future);
+        context.Timeout = 1;
+        context.RequestTime -= 950;
+        Connector.putChannelContext(channel, context, true);
+        Connector.addTimeout(context, channel, false);
+        assertEquals(ErrorCode.TIMEOUT, (int) future.get(2, TimeUnit.SECONDS));
+        assertEquals(0, Connector.ChannelContext.get(channel).size());
+    }
+
+    @Test
+    public void result() throws Exception {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Context context = request(future);
+        context.Timeout = 1;
+        Connector.putChannelContext(channel, context, true);
+        Connector.addTimeout(context, channel, false);
+        Connector.setChannelResponse(channel, context.getReqID(), (byte) ErrorCode.OK, "ok", null);    // 没有注册数据的容器使用字符串的请求ID
+        assertEquals(ErrorCode.OK, (int) future.getNow(-1));
+        assertTrue(context.TimeoutTask.isCancelled());  // 得到结果时取消超时任务
+    }
+
+    @Test
+    public void closeTimeout() throws Exception {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Context context = request(future);
+        context.Timeout = 100;
+        Connector.putChannelContext(channel, context, true);
+        Connector.addTimeout(context, channel, false);
+        // 关闭时未到期的超时任务立即执行，等待结果的请求不会永远阻塞
+        IOHandler.close();
+        assertEquals(ErrorCode.TIMEOUT, (int) future.getNow(-1));
+        assertEquals(0, Connector.ChannelContext.get(channel).size());
+        assertNull(IOHandler.IOWheel);
+    }
+
+    @Test
+    public void streamID() throws Exception {
+        Map<String, Register.Container> containers = Router.Containers;
+        try {
+            Register.Container container = new Register.Container();
+            container.StreamID = true;
+            Router.Containers = Collections.singletonMap(ADDR, container);
+            Connector.Streams streams = new Connector.Streams("connector-test", 7112);
+            assertTrue(streams.IntID);
+            Context a = request(new CompletableFuture<>());
+            Context b = request(new CompletableFuture<>());
+            a.StreamID = streams.put(a);
+            b.StreamID = streams.put(b);
+            assertEquals(1, a.StreamID);
+            assertEquals(2, b.StreamID);
+            assertSame(b, streams.get(2));
+            assertNull(streams.get("2"));
+            assertTrue(streams.remove(a));
+            assertFalse(streams.remove(a));
+            assertEquals(1, streams.size());
+        } finally {
+            Router.Containers = containers;
+        }
+    }
+
+    @Test
+    public void legacyID() throws Exception {
+        Connector.Streams streams = Connector.ChannelContext.get(channel);
+        assertFalse(streams.IntID);
+        Context a = request(new CompletableFuture<>());
+        Connector.putChannelContext(channel, a, true);
+        assertNotEquals(0, a.StreamID);
+        // 字符串的请求ID = 连接的前缀 + 8位十六进制的流ID
+        ByteBuf buf = Unpooled.buffer();
+        Codec.encodeHexID(buf, a.IDPrefix, a.StreamID);
+        String id = (String) Codec.decode(buf);
+        assertEquals(streams.Prefix + "00000001", id);
+        assertEquals(id, a.getReqID());
+        assertSame(a, streams.get(id));
+        assertNull(streams.get(a.StreamID));
+        assertNotEquals(streams.Prefix, new Connector.Streams("connector-test", 7112).Prefix);
+        // 发送前已经确定了请求ID的请求按请求ID关联
+        Context b = request(new CompletableFuture<>());
+        String reqID = b.getReqID();
+        Connector.putChannelContext(channel, b, true);
+        assertEquals(0, b.StreamID);
+        assertSame(b, streams.get(reqID));
+        assertEquals(2, streams.size());
+        assertEquals(2, streams.clear().size());
+        assertEquals(0, streams.size());
+    }
+
+    @Test
+    public void hedgeWin() throws Exception {
+        Context.ConcurrencyMax = 10;
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Context context = request(future);
+        Connector.putChannelContext(channel, context, true);
+        assertTrue(Limiter.acquire(ADDR, -1));
+        context.Permit = ADDR;
+        context.Sent = true;
+        Context copy = request(new CompletableFuture<>());
+        copy.TargetContainer = "connector-hedge#7112";
+        long win = context.getStat().hedge_win.get();
+        // 对冲请求先返回正常结果，作为原请求的结果
+        Connector.dealHedge(context, channel, copy, ErrorCode.OK, "hedge");
+        assertEquals(ErrorCode.OK, (int) future.getNow(-1));
+        assertTrue(context.isHedged());
+        assertEquals("hedge", context.ResultData);
+        assertEquals("connector-hedge#7112", context.TargetContainer);
+        assertEquals(win + 1, context.getStat().hedge_win.get());
+        assertEquals(0, Connector.ChannelContext.get(channel).size());
+        // 原请求占用的并发数释放但不调整限制，结果不计入任何容器的健康统计（副本记录自己的结果）
+        assertArrayEquals(new int[] { 10, 0 }, Limiter.getLimit(ADDR));
+        assertTrue(Health.Containers.isEmpty());
+        // 原请求后返回的结果被丢弃
+        Connector.setChannelResponse(channel, context.getReqID(), (byte) ErrorCode.OK, "original", null);
+        assertEquals("hedge", context.ResultData);
+    }
+
+    @Test
+    public void hedgeLose() throws Exception {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Context context = request(future);
+        Connector.putChannelContext(channel, context, true);
+        context.Sent = true;
+        Context copy = request(new CompletableFuture<>());
+        copy.TargetContainer = "connector-hedge#7112";
+        long win = context.getStat().hedge_win.get();
+        // 对冲请求的错误不作为结果
+        Connector.dealHedge(context, channel, copy, ErrorCode.TIMEOUT, null);
+        assertFalse(future.isDone());
+        // 原请求先返回，对冲请求的结果被丢弃
+        Connector.setChannelResponse(channel, context.getReqID(), (byte) ErrorCode.OK, "original", null);
+        Connector.dealHedge(context, channel, copy, ErrorCode.OK, "hedge");
+        assertEquals(ErrorCode.OK, (int) future.getNow(-1));
+        assertFalse(context.isHedged());
+        assertEquals("original", context.ResultData);
+        assertEquals(ADDR, context.TargetContainer);
+        assertEquals(win, context.getStat().hedge_win.get());
+        assertNotNull(Health.Containers.get(ADDR));     // 原请求的结果计入原容器
+    }
+
+    @Test
+    public void reply() throws Exception {
+        String replyChannel = Context.ReplyChannel;
+        Context.ReplyChannel = Context.CHANNEL_REPLY + "connector-test";
+        try {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            Context context = request(future);
+            context.RequestTime = 0;
+            EmbeddedChannel ch = new EmbeddedChannel();
+            assertFalse(context.sendRequest(ch, false, true));
+            // 消息模式的请求使用全局唯一的请求ID，请求头带有本Consumer的回复频道
+            EmbeddedChannel decoder = new EmbeddedChannel(new IOData.Decoder());
+            decoder.writeInbound((ByteBuf) ch.readOutbound());
+            Object[] req = decoder.readInbound();
+            assertEquals(context.getReqID(), req[0]);
+            assertEquals(Context.ReplyChannel, ((Map) req[1]).get(Context.HEADER_REQ_REPLY));
+            assertEquals(Context.FLAG_MESSAGE, (byte) req[4] & Context.FLAG_MESSAGE);
+            // 容器将结果发送到回复频道
+            Connector.MessageContext.put(context.getReqID(), context);
+            Context.newListener().onMessage(Context.ReplyChannel, new Object[] { req[0], (byte) ErrorCode.OK, "done" });
+            assertEquals(ErrorCode.OK, (int) future.getNow(-1));
+            assertEquals("done", context.ResultData);
+            assertFalse(Connector.MessageContext.containsKey(context.getReqID()));
+        } finally {
+            Context.ReplyChannel = replyChannel;
+        }
+    }
+
+    @Test
+    public void pool() throws Exception {
+        int connectionMax = Context.ConnectionMax;
+        Context.ConnectionMax = 2;
+        Channel other = new EmbeddedChannel();
+        Connector.ChannelContext.put(other, new Connector.Streams("connector-test", 7112));
+        try {
+            Connector.Pool pool = new Connector.Pool("connector-test", 7112, ADDR);
+            pool.Channels = new Channel[] { channel, other };
+            Connector.putChannelContext(channel, request(new CompletableFuture<>()), true);
+            // 选择待处理请求最少的连接
+            assertSame(other, pool.select());
+            assertEquals(1, pool.pending());
+            Connector.putChannelContext(other, request(new CompletableFuture<>()), true);
+            Connector.putChannelContext(other, request(new CompletableFuture<>()), true);
+            assertSame(channel, pool.select());
+            assertEquals(3, pool.pending());
+            // 不活跃的连接不再使用
+            channel.close();
+            assertSame(other, pool.select());
+            assertNull(pool.Connecting.get());      // 已达到最多连接数
+        } finally {
+            Context.ConnectionMax = connectionMax;
+            Connector.ChannelContext.remove(other);
+        }
+    }
+
+    @Test
+    public void alone() throws Exception {
+        boolean connectionReuse = Context.ConnectionReuse;
+        int connectionMax = Context.ConnectionMax;
+        Context.ConnectionReuse = true;
+        Context.ConnectionMax = 1;
+        try {
+            // 请求结束后回收连接，下次请求复用
+            Connector.releaseAlone(ADDR, channel, ErrorCode.OK);
+            assertTrue(Connector.AloneTime.containsKey(channel));
+            assertSame(channel, Connector.getAlone("connector-test", 7112));
+            assertFalse(Connector.AloneTime.containsKey(channel));
+            assertTrue(Connector.AloneIdle.get(ADDR).isEmpty());
+            // 超出最多连接数时关闭最久未使用的连接
+            Channel other = new EmbeddedChannel();
+            Connector.ChannelContext.put(other, new Connector.Streams("connector-test", 7112));
+            Connector.releaseAlone(ADDR, other, ErrorCode.OK);
+            Connector.releaseAlone(ADDR, channel, ErrorCode.OK);
+            assertFalse(other.isActive());
+            assertFalse(Connector.ChannelContext.containsKey(other));
+            assertSame(channel, Connector.AloneIdle.get(ADDR).peekFirst());
+            // 请求超时的连接关闭，不再复用
+            assertSame(channel, Connector.getAlone("connector-test", 7112));
+            Connector.releaseAlone(ADDR, channel, ErrorCode.TIMEOUT);
+            assertFalse(channel.isActive());
+            assertTrue(Connector.AloneIdle.get(ADDR).isEmpty());
+        } finally {
+            Context.ConnectionReuse = connectionReuse;
+            Context.ConnectionMax = connectionMax;
+            Connector.AloneIdle.clear();
+            Connector.AloneTime.clear();
+        }
+    }
+
+    @Test
+    public void connect() throws Exception {
+        IOHandler.close();
+        IOHandler.init();
+        int connectionMin = Context.ConnectionMin;
+        Context.ConnectionMin = 2;
+        String host = "127.0.0.1";
+        Connector.Pool pool = null;
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName(host))) {
+            pool = Connector.getPool(host, server.getLocalPort());
+            // 同时发起的连接共用正在建立的连接，不阻塞调用线程
+            CompletableFuture<Channel> future = pool.connecting();
+            assertSame(future, pool.connecting());
+            Channel ch = future.get(5, TimeUnit.SECONDS);
+            assertTrue(ch.isActive());
+            assertArrayEquals(new Channel[] { ch }, pool.Channels);
+            assertNotNull(Connector.ChannelContext.get(ch));
+            // 预先建立连接直到最少连接数
+            Connector.prewarm(pool.Addr);
+            for ( int i = 0; i < 500 && pool.Channels.length < 2; i ++ )
+                Thread.sleep(10);
+            assertEquals(2, pool.Channels.length);
+            Connector.prewarm(pool.Addr);
+            assertNull(pool.Connecting.get());
+            assertNotNull(pool.select());
+        } finally {
+            Context.ConnectionMin = connectionMin;
+            if ( pool != null ) {
+                Connector.AddrPool.remove(pool.Addr);
+                for ( Channel ch : pool.Channels ) {
+                    Connector.ChannelPool.remove(ch);
+                    Connector.ChannelContext.remove(ch);
+                    ch.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void connectError() throws Exception {
+        IOHandler.close();
+        IOHandler.init();
+        int port;
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            port = server.getLocalPort();
+        }
+        Connector.Pool pool = Connector.getPool("127.0.0.1", port);
+        try {
+            pool.get();
+            fail("connect to closed port");
+        } catch (Context.ResultException e) {
+            assertEquals(ErrorCode.CONNECT, e.Code);
+        } finally {
+            Connector.AddrPool.remove(pool.Addr);
+        }
+        assertNull(pool.Connecting.get());
+        assertEquals(0, pool.Channels.length);
+        // 连接失败的容器不预先建立连接
+        assertTrue(Router.Disabled.containsKey(pool.Addr));
+        Connector.prewarm(pool.Addr);
+        assertFalse(Connector.AddrPool.containsKey(pool.Addr));
+        Router.Disabled.remove(pool.Addr);
+        Router.IndexDirty = false;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import rewin.ubsi.common.IOData;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 请求发送（截止时间、CompletableFuture、广播）的单元测试
+ */
+public class ContextTest {
+
+    /* 异步请求 */
+    static Context request() throws Exception {
+        Context context = Context.request("context.test", "get");
+        context.Notify = (code, data) -> {};
+        return context;
+    }
+
+    /* 解码发出的请求：[ id, header, service, [entry, params...], flag ] */
+    static Object[] decode(EmbeddedChannel ch) {
+        EmbeddedChannel decoder = new EmbeddedChannel(new IOData.Decoder());
+        decoder.writeInbound((ByteBuf) ch.readOutbound());
+        return decoder.readInbound();
+    }
+
+    @Test
+    public void expired() throws Exception {
+        Context context = request();
+        context.setDeadline(System.currentTimeMillis() - 1);
+        EmbeddedChannel ch = new EmbeddedChannel();
+        assertTrue(context.sendRequest(ch, false, false));
+        assertEquals(ErrorCode.EXPIRED, context.getResultCode());
+        assertNull(ch.readOutbound());      // 已经超过截止时间的请求不发送
+    }
+
+    @Test
+    public void deadline() throws Exception {
+        // 按超时时间计算截止时间，传递给容器
+        Context context = request();
+        context.setTimeout(5);
+        EmbeddedChannel ch = new EmbeddedChannel();
+        assertFalse(context.sendRequest(ch, false, false));
+        assertEquals(context.RequestTime + 5000, context.getDeadline());
+        Object[] req = decode(ch);
+        assertEquals(context.getDeadline(), ((Map) req[1]).get(Context.HEADER_REQ_DEADLINE));
+
+        // 继承的截止时间早于超时时间时缩短超时时间
+        context = request();
+        context.setTimeout(10);
+        long deadline = System.currentTimeMillis() + 2000;
+        context.setDeadline(deadline);
+        assertFalse(context.sendRequest(ch, false, false));
+        assertEquals(deadline, context.getDeadline());
+        assertEquals(2, context.getTimeout());
+        assertEquals(deadline, ((Map) decode(ch)[1]).get(Context.HEADER_REQ_DEADLINE));
+
+        // 不等待结果的请求不限制截止时间
+        context = request();
+        context.setTimeout(5);
+        assertFalse(context.sendRequest(ch, true, false));
+        assertEquals(0, context.getDeadline());
+        assertNull(decode(ch)[1]);
+    }
+
+    @Test
+    public void future() throws Exception {
+        CompletableFuture<Object> ok = new CompletableFuture<>();
+        Context.futureNotify(ok).callback(ErrorCode.OK, "ok");
+        assertEquals("ok", ok.get(5, TimeUnit.SECONDS));
+        CompletableFuture<Object> error = new CompletableFuture<>();
+        Context.futureNotify(error).callback(ErrorCode.TIMEOUT, "request timeout");
+        try {
+            error.get(5, TimeUnit.SECONDS);
+            fail("request timeout");
+        } catch (ExecutionException e) {
+            assertEquals(ErrorCode.TIMEOUT, ((Context.ResultException) e.getCause()).Code);
+        }
+    }
+
+    @Test
+    public void futureExecutor() throws Exception {
+        // 在回调线程池中完成，不占用IO线程
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "future-test"));
+        try {
+            Context.setCallbackExecutor(executor);
+            CountDownLatch latch = new CountDownLatch(1);
+            executor.execute(() -> { try { latch.await(); } catch (Exception e) {} });
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            Context.futureNotify(future).callback(ErrorCode.OK, null);
+            CompletableFuture<String> thread = future.thenApply(res -> Thread.currentThread().getName());
+            latch.countDown();
+            assertEquals("future-test", thread.get(5, TimeUnit.SECONDS));
+            // 回调线程池已关闭时直接完成
+            executor.shutdown();
+            future = new CompletableFuture<>();
+            Context.futureNotify(future).callback(ErrorCode.OK, "ok");
+            assertEquals("ok", future.getNow(null));
+        } finally {
+            Context.setCallbackExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void broadcast() throws Exception {
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        Context.Broadcast broadcast = new Context.Broadcast(Arrays.asList("a#1", "b#1"), future);
+        broadcast.put("a#1", ErrorCode.OK, "ok");
+        assertFalse(future.isDone());
+        broadcast.put("b#1", ErrorCode.OVERLOAD, "server overload");     // 得到全部容器的结果
+        Map<String, Object> res = future.get(5, TimeUnit.SECONDS);
+        assertEquals("ok", res.get("a#1"));
+        assertEquals(ErrorCode.OVERLOAD, ((Context.ResultException) res.get("b#1")).Code);
+        broadcast.put("b#1", ErrorCode.OK, "late");     // 结束后的结果忽略
+        assertTrue(res.get("b#1") instanceof Context.ResultException);
+    }
+
+    @Test
+    public void broadcastTimeout() throws Exception {
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        Context.Broadcast broadcast = new Context.Broadcast(Arrays.asList("a#1", "b#1"), future);
+        broadcast.put("a#1", ErrorCode.OK, "ok");
+        broadcast.finish();         // 超时时返回部分结果
+        Map<String, Object> res = future.get(5, TimeUnit.SECONDS);
+        assertEquals("ok", res.get("a#1"));
+        assertEquals(ErrorCode.TIMEOUT, ((Context.ResultException) res.get("b#1")).Code);
+    }
+}
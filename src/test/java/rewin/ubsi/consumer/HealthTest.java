@@ -0,0 +1,197 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 容器健康统计及熔断状态的单元测试
+ */
+public class HealthTest {
+
+    final static long T = 1000000000000L;   // 测试的起始时间戳
+
+    int breakerError, breakerTime, concurrencyMax;
+
+    @Before
+    public void before() {
+        breakerError = Context.BreakerError;
+        breakerTime = Context.BreakerTime;
+        concurrencyMax = Context.ConcurrencyMax;
+        Context.BreakerError = 50;
+        Context.BreakerTime = 10;
+        Health.Containers.clear();
+    }
+
+    @After
+    public void after() {
+        Context.BreakerError = breakerError;
+        Context.BreakerTime = breakerTime;
+        Context.ConcurrencyMax = concurrencyMax;
+        Health.Containers.clear();
+        Limiter.Containers.clear();
+    }
+
+    /* 记录n个请求结果，返回最后一次记录时状态是否变化 */
+    static boolean record(Health health, int n, boolean error, long t) {
+        boolean changed = false;
+        for ( int i = 0; i < n; i ++ )
+            changed = health.record(error, 1, t);
+        return changed;
+    }
+
+    @Test
+    public void minRequest() {
+        Health health = new Health();
+        assertFalse(record(health, Health.MIN_REQUEST - 1, true, T));
+        assertEquals("closed", health.getState());
+        assertTrue(health.record(true, 1, T));
+        assertEquals("open", health.getState());
+    }
+
+    @Test
+    public void errorRate() {
+        Health health = new Health();
+        record(health, 11, false, T);
+        assertFalse(record(health, 10, true, T));       // 10/21 < 50%
+        assertTrue(health.record(true, 1, T));          // 11/22 >= 50%
+        assertFalse(health.allow(T, false));
+        assertFalse(health.allow(T + 9999, false));
+    }
+
+    @Test
+    public void window() {
+        Health health = new Health();
+        record(health, 19, true, T);
+        // 超出统计窗口的错误不再计算
+        assertFalse(health.record(true, 1, T + Health.WINDOW * 1000L));
+        assertEquals("closed", health.getState());
+        assertEquals(1, health.sum(T + Health.WINDOW * 1000L)[0]);
+    }
+
+    @Test
+    public void halfOpen() {
+        Health health = new Health();
+        record(health, Health.MIN_REQUEST, true, T);
+        long t = T + 10000;
+        assertTrue(health.allow(t, false));
+        assertEquals("half-open", health.getState());
+        assertTrue(health.allow(t, true));              // 占用试探请求
+        assertFalse(health.allow(t + 1, true));         // 每个熔断周期只有一个试探请求
+        assertTrue(health.allow(t + 10000, true));      // 试探请求没有结果时，下个周期再试探
+        assertTrue(health.record(false, 1, t + 10001));
+        assertEquals("closed", health.getState());
+        assertEquals(0, health.sum(t + 10001)[0]);      // 恢复时清除统计数据
+    }
+
+    @Test
+    public void backoff() {
+        Health health = new Health();
+        record(health, Health.MIN_REQUEST, true, T);
+        assertEquals(T + 10000, health.OpenUntil);
+        long t = T + 10000;
+        assertTrue(health.allow(t, true));
+        assertTrue(health.record(true, 1, t));          // 试探失败，熔断时间加倍
+        assertEquals("open", health.getState());
+        assertEquals(t + 20000, health.OpenUntil);
+        for ( int i = 0; i < 10; i ++ ) {
+            t = health.OpenUntil;
+            assertTrue(health.allow(t, true));
+            health.record(true, 1, t);
+        }
+        assertEquals(t + 10000 * Health.MAX_BACKOFF, health.OpenUntil);
+    }
+
+    @Test
+    public void container() {
+        String addr = "health-test#7112";
+        assertTrue(Health.allow(addr, "svc", "entry"));
+        for ( int i = 0; i < Health.MIN_REQUEST; i ++ )
+            Health.record(addr, "svc", "entry", ErrorCode.TIMEOUT, 1);
+        assertFalse(Health.allow(addr, "svc", "entry"));
+        assertFalse(Health.allow(addr, "svc", "other"));
+        assertTrue(Health.allow("health-other#7112", "svc", "entry"));
+    }
+
+    @Test
+    public void probe() {
+        String addr = "health-probe#7112";
+        Health health = Health.getHealth(Health.Containers, addr);
+        health.State = Health.OPEN;
+        health.OpenUntil = System.currentTimeMillis() - 1;
+        // 路由时只检查，不占用试探请求
+        assertTrue(Health.allow(addr, "svc", "entry"));
+        assertTrue(Health.allow(addr, "svc", "entry"));
+        assertEquals("half-open", health.getState());
+        assertEquals(0, health.ProbeTime);
+        // 请求发出时占用试探请求
+        long probe = Health.probe(addr, "svc", "entry");
+        assertTrue(probe > 0);
+        assertFalse(Health.allow(addr, "svc", "entry"));
+        assertEquals(0, Health.probe(addr, "svc", "entry"));
+        // 没有记录结果时释放，其他请求可以试探
+        Health.release(addr, "svc", "entry", probe - 1);
+        assertFalse(Health.allow(addr, "svc", "entry"));
+        Health.release(addr, "svc", "entry", probe);
+        assertTrue(Health.allow(addr, "svc", "entry"));
+        // 正常的容器不占用
+        assertEquals(0, Health.probe("health-other#7112", "svc", "entry"));
+    }
+
+    @Test
+    public void notSent() throws Exception {
+        String addr = "health-limit#7112";
+        Health health = Health.getHealth(Health.Containers, addr);
+        health.State = Health.OPEN;
+        health.OpenUntil = System.currentTimeMillis() - 1;
+        Context.ConcurrencyMax = 1;
+        assertTrue(Limiter.acquire(addr, -1));
+        // 并发已满，请求没有发出：不占用试探请求，也不计入容器的错误
+        Context context = Context.request("svc", "entry");
+        context.TargetContainer = addr;
+        context.Notify = (code, data) -> {};
+        assertTrue(context.sendRequest(new EmbeddedChannel(), false, false));
+        assertEquals(ErrorCode.OVERLOAD, context.ResultCode);
+        context.logResult();
+        assertTrue(Health.allow(addr, "svc", "entry"));
+        assertEquals("half-open", health.getState());
+        assertEquals(0, health.ProbeTime);
+        assertEquals(0, health.sum(System.currentTimeMillis())[0]);
+    }
+
+    @Test
+    public void disabled() {
+        Context.BreakerError = 0;
+        Health health = new Health();
+        assertFalse(record(health, 100, true, T));
+        assertEquals("closed", health.getState());
+    }
+
+    @Test
+    public void isError() {
+        assertFalse(Health.isError(ErrorCode.OK));
+        assertFalse(Health.isError(ErrorCode.REQUEST));
+        assertTrue(Health.isError(ErrorCode.TIMEOUT));
+        assertTrue(Health.isError(ErrorCode.OVERLOAD));
+        assertTrue(Health.isError(ErrorCode.CHANNEL));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * 自适应并发限制（AIMD）的单元测试
+ */
+public class LimiterTest {
+
+    final static String ADDR = "limiter-test#7112";
+
+    int concurrencyMax;
+
+    @Before
+    public void before() {
+        concurrencyMax = Context.ConcurrencyMax;
+        Limiter.Containers.clear();
+    }
+
+    @After
+    public void after() {
+        Context.ConcurrencyMax = concurrencyMax;
+        Limiter.Containers.clear();
+    }
+
+    @Test
+    public void disabled() {
+        Context.ConcurrencyMax = 0;
+        for ( int i = 0; i < 1000; i ++ )
+            assertTrue(Limiter.acquire(ADDR, -1));
+        assertFalse(Limiter.isFull(ADDR));
+        assertTrue(Limiter.Containers.isEmpty());
+    }
+
+    @Test
+    public void full() {
+        Context.ConcurrencyMax = 4;
+        for ( int i = 0; i < 4; i ++ )
+            assertTrue(Limiter.acquire(ADDR, -1));
+        assertTrue(Limiter.isFull(ADDR));
+        assertFalse(Limiter.acquire(ADDR, -1));
+        Limiter.release(ADDR, ErrorCode.OK, System.currentTimeMillis(), false);
+        assertFalse(Limiter.isFull(ADDR));
+        assertTrue(Limiter.acquire(ADDR, -1));
+        assertArrayEquals(new int[] { 4, 4 }, Limiter.getLimit(ADDR));
+    }
+
+    @Test
+    public void decrease() throws Exception {
+        Context.ConcurrencyMax = 1000;
+        long t = System.currentTimeMillis();
+        assertTrue(Limiter.acquire(ADDR, -1));
+        assertTrue(Limiter.acquire(ADDR, -1));
+        Limiter.release(ADDR, ErrorCode.OVERLOAD, t, true);
+        assertEquals(90, Limiter.getLimit(ADDR)[0]);
+        // 同一批请求（在降低之前发出）的过载不再降低
+        Limiter.release(ADDR, ErrorCode.TIMEOUT, t, true);
+        assertEquals(90, Limiter.getLimit(ADDR)[0]);
+        // 降低之后发出的请求再次过载
+        Thread.sleep(2);
+        assertTrue(Limiter.acquire(ADDR, -1));
+        Limiter.release(ADDR, ErrorCode.EXPIRED, System.currentTimeMillis(), true);
+        assertEquals(81, Limiter.getLimit(ADDR)[0]);
+    }
+
+    @Test
+    public void increase() {
+        Context.ConcurrencyMax = 10;
+        assertTrue(Limiter.acquire(ADDR, -1));
+        Limiter.release(ADDR, ErrorCode.OVERLOAD, System.currentTimeMillis() + 1, true);
+        assertEquals(9, Limiter.getLimit(ADDR)[0]);
+        // 负载较低时正常的结果不增加
+        assertTrue(Limiter.acquire(ADDR, -1));
+        Limiter.release(ADDR, ErrorCode.OK, System.currentTimeMillis(), true);
+        assertEquals(9, Limiter.getLimit(ADDR)[0]);
+        // 满负荷时正常的结果加1，不超过上限
+        for ( int i = 0; i < 9; i ++ )
+            assertTrue(Limiter.acquire(ADDR, -1));
+        Limiter.release(ADDR, ErrorCode.OK, System.currentTimeMillis(), true);
+        assertEquals(10, Limiter.getLimit(ADDR)[0]);
+        Limiter.release(ADDR, ErrorCode.OK, System.currentTimeMillis(), true);
+        assertEquals(10, Limiter.getLimit(ADDR)[0]);
+        // 业务错误不调整
+        Limiter.release(ADDR, ErrorCode.EXCEPTION, System.currentTimeMillis(), true);
+        assertEquals(10, Limiter.getLimit(ADDR)[0]);
+    }
+
+    @Test
+    public void waitSlot() throws Exception {
+        Context.ConcurrencyMax = 1;
+        assertTrue(Limiter.acquire(ADDR, -1));
+        long t = System.currentTimeMillis();
+        assertFalse(Limiter.acquire(ADDR, 50));
+        assertTrue(System.currentTimeMillis() - t >= 50);
+
+        new Thread(() -> {
+            try { Thread.sleep(50); } catch (Exception e) {}
+            Limiter.release(ADDR, ErrorCode.OK, System.currentTimeMillis(), false);
+        }).start();
+        assertTrue(Limiter.acquire(ADDR, 5000));
+    }
+
+    @Test
+    public void noWaitInCallback() throws Exception {
+        Context.ConcurrencyMax = 1;
+        assertTrue(Limiter.acquire(ADDR, -1));
+        long t = System.currentTimeMillis();
+        // 回调线程池中不等待，直接失败
+        CompletableFuture<Boolean> pool = new CompletableFuture<>();
+        ForkJoinPool.commonPool().execute(() -> pool.complete(Limiter.acquire(ADDR, 5000)));
+        assertFalse(pool.get());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Context.setCallbackExecutor(executor);
+            CompletableFuture<Boolean> custom = new CompletableFuture<>();
+            Context.CallbackExecutor.execute(() -> custom.complete(Limiter.acquire(ADDR, 5000)));
+            assertFalse(custom.get());
+        } finally {
+            Context.setCallbackExecutor(null);
+            executor.shutdown();
+        }
+        assertTrue(System.currentTimeMillis() - t < 2000);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rewin.ubsi.consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 重试预算（令牌桶）的单元测试
+ */
+public class RetryTest {
+
+    final static String SERVICE = "retry.test";
+
+    int retryBudget;
+
+    @Before
+    public void before() {
+        retryBudget = Context.RetryBudget;
+        Retry.Services.clear();
+    }
+
+    @After
+    public void after() {
+        Context.RetryBudget = retryBudget;
+        Retry.Services.clear();
+    }
+
+    @Test
+    public void burst() {
+        Context.RetryBudget = 10;
+        for ( int i = 0; i < Retry.MAX_TOKENS; i ++ )
+            assertTrue(Retry.acquire(SERVICE));
+        assertFalse(Retry.acquire(SERVICE));
+        assertTrue(Retry.acquire("retry.other"));     // 每个服务单独计算
+    }
+
+    @Test
+    public void deposit() {
+        Context.RetryBudget = 20;
+        while ( Retry.acquire(SERVICE) ) ;
+        for ( int i = 0; i < 4; i ++ )
+            Retry.deposit(SERVICE);
+        assertFalse(Retry.acquire(SERVICE));
+        Retry.deposit(SERVICE);     // 每5个请求存入1个令牌
+        assertTrue(Retry.acquire(SERVICE));
+        assertFalse(Retry.acquire(SERVICE));
+    }
+
+    @Test
+    public void capacity() {
+        Context.RetryBudget = 100;
+        for ( int i = 0; i < 1000; i ++ )
+            Retry.deposit(SERVICE);
+        int n = 0;
+        while ( Retry.acquire(SERVICE) )
+            n ++;
+        assertEquals((int) Retry.MAX_TOKENS, n);
+    }
+
+    @Test
+    public void disabled() {
+        Context.RetryBudget = 0;
+        Retry.deposit(SERVICE);
+        assertFalse(Retry.acquire(SERVICE));
+        assertTrue(Retry.Services.isEmpty());
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 注册表路由的单元测试
+ */
+public class RouterTest {
+
+    final static String SERVICE = "router.test";
+    final static Router.RouteKey KEY = new Router.RouteKey(SERVICE, null, 0, 0, -1);
+
+    String localHost, zone;
+    int localityLoad, concurrencyMax, slowStart;
+    Map<String, Register.Container> routeContainers;
+    Router.Index routeIndex;
+
+    @Before
+    public void before() {
+        localHost = Context.LocalHost;
+        zone = Context.Zone;
+        localityLoad = Context.LocalityLoad;
+        concurrencyMax = Context.ConcurrencyMax;
+        slowStart = Context.SlowStart;
+        routeContainers = Router.Containers;
+        routeIndex = Router.RouteIndex;
+        Context.LocalHost = "host-a";
+        Context.Zone = "zone-a";
+        Context.LocalityLoad = 80;
+        clear();
+    }
+
+    @After
+    public void after() {
+        Context.LocalHost = localHost;
+        Context.Zone = zone;
+        Context.LocalityLoad = localityLoad;
+        Context.ConcurrencyMax = concurrencyMax;
+        Context.SlowStart = slowStart;
+        Router.Containers = routeContainers;
+        Router.RouteIndex = routeIndex;
+        clear();
+    }
+
+    static void clear() {
+        Health.Containers.clear();
+        Limiter.Containers.clear();
+        Router.Disabled.clear();
+        Router.Starting.clear();
+        Router.Heartbeats.clear();
+        Router.Latencies.clear();
+        Router.IndexDirty = false;
+    }
+
+    /* 注册的容器 */
+    static Register.Container container(String host, String zone, int waiting) {
+        Register.Container container = new Register.Container();
+        container.Host = host;
+        container.Zone = zone;
+        container.Overload = 100;
+        container.Waiting = waiting;
+        container.Timestamp = System.currentTimeMillis();
+        Register.Service service = new Register.Service();
+        service.Status = 1;
+        service.Version = 1;
+        service.Release = true;
+        container.Services.put(SERVICE, service);
+        return container;
+    }
+
+    /* 本机1个容器，本区域2个容器，远端1个容器 */
+    static Map<String, Register.Container> containers(int waiting) {
+        Map<String, Register.Container> map = new HashMap<>();
+        map.put("host#1", container("host-a", "zone-a", waiting));
+        map.put("zone#1", container("host-b", "zone-a", waiting));
+        map.put("zone#2", container("host-c", "zone-a", waiting));
+        map.put("remote#1", container("host-d", "zone-b", 10));
+        return map;
+    }
+
+    static Router.Route compile(Map<String, Register.Container> containers) {
+        return new Router.Index(containers, System.currentTimeMillis()).compile(KEY);
+    }
+
+    /* 各个层级的节点地址 */
+    static List<Set<String>> tiers(Router.Route route) {
+        List<Set<String>> res = new ArrayList<>();
+        for ( ; route != null; route = route.Next )
+            res.add(new HashSet<>(Arrays.asList(route.Addrs)));
+        return res;
+    }
+
+    static Set<String> set(String... addrs) {
+        return new HashSet<>(Arrays.asList(addrs));
+    }
+
+    static String select(Router.Route route, String exclude) throws Exception {
+        Context context = Context.request(SERVICE, "get");
+        context.ExcludeContainer = exclude;
+        Register.Node node = Router.select(route, null, false, context);
+        return node.Host + "#" + node.Port;
+    }
+
+    static void open(String addr) {
+        Health health = new Health();
+        health.State = Health.OPEN;
+        health.OpenUntil = Long.MAX_VALUE;
+        Health.Containers.put(addr, health);
+    }
+
+    @Test
+    public void tiers() {
+        assertEquals(Arrays.asList(set("host#1"), set("zone#1", "zone#2"), set("remote#1")), tiers(compile(containers(10))));
+        // 本机的负载超过阈值时合并本区域的节点
+        Map<String, Register.Container> map = containers(10);
+        map.put("host#1", container("host-a", "zone-a", 90));
+        assertEquals(Arrays.asList(set("host#1", "zone#1", "zone#2"), set("remote#1")), tiers(compile(map)));
+        // 本区域的负载也超过阈值时合并全部的节点
+        assertEquals(Arrays.asList(set("host#1", "zone#1", "zone#2", "remote#1")), tiers(compile(containers(90))));
+        // 不区分本地节点
+        Context.LocalityLoad = 0;
+        assertEquals(Arrays.asList(set("host#1", "zone#1", "zone#2", "remote#1")), tiers(compile(containers(10))));
+    }
+
+    @Test
+    public void emptyTiers() throws Exception {
+        Map<String, Register.Container> map = containers(10);
+        map.remove("host#1");
+        Router.Route route = compile(map);
+        assertEquals(Arrays.asList(set("zone#1", "zone#2"), set("remote#1")), tiers(route));
+        map.remove("zone#1");
+        map.remove("zone#2");
+        route = compile(map);
+        assertEquals(Arrays.asList(set("remote#1")), tiers(route));
+        assertEquals("remote#1", select(route, null));
+        map.clear();
+        route = compile(map);
+        assertEquals(0, route.Nodes.length);
+        assertNull(route.Next);
+    }
+
+    @Test
+    public void reject() {
+        Map<String, Register.Container> map = containers(10);
+        map.put("zone#2", container("host-c", "zone-a", 100));     // 过载
+        map.get("remote#1").Services.get(SERVICE).Status = 0;       // 服务未运行
+        Router.Disabled.put("zone#1", System.currentTimeMillis() + 1000);  // 连接失败
+        assertEquals(Arrays.asList(set("host#1")), tiers(compile(map)));
+    }
+
+    @Test
+    public void fallThrough() throws Exception {
+        Router.Route route = compile(containers(10));
+        assertEquals("host#1", select(route, null));
+        open("host#1");
+        assertTrue(set("zone#1", "zone#2").contains(select(route, null)));
+        open("zone#1");
+        assertEquals("zone#2", select(route, null));
+        // 对冲/重试请求避开原请求的容器
+        assertEquals("remote#1", select(route, "zone#2"));
+        open("zone#2");
+        assertEquals("remote#1", select(route, null));
+        // 都不可用时仍使用首选层级中选中的节点
+        open("remote#1");
+        assertEquals("host#1", select(route, null));
+        try {
+            select(route, "host#1");
+            fail("no other routing path");
+        } catch (Context.ResultException e) {
+            assertEquals(ErrorCode.ROUTER, e.Code);
+        }
+    }
+
+    @Test
+    public void broadcast() throws Exception {
+        Map<String, Register.Container> map = containers(10);
+        map.put("zone#2", container("host-c", "zone-a", 100));     // 过载的容器也广播
+        map.get("remote#1").Services.get(SERVICE).Status = 0;       // 服务未运行
+        Router.RouteIndex = new Router.Index(map, System.currentTimeMillis());
+        assertEquals(set("host#1", "zone#1", "zone#2"), new HashSet<>(Router.getContainers(SERVICE, 0, 0, -1)));
+        assertTrue(Router.getContainers("router.other", 0, 0, -1).isEmpty());
+        // 没有可用的容器时失败
+        try {
+            Context.request("router.other", "get").broadcastFuture().get(5, TimeUnit.SECONDS);
+            fail("no container");
+        } catch (ExecutionException e) {
+            assertEquals(ErrorCode.ROUTER, ((Context.ResultException) e.getCause()).Code);
+        }
+    }
+
+    @Test
+    public void limitFull() throws Exception {
+        Context.ConcurrencyMax = 1;
+        Router.Route route = compile(containers(10));
+        assertTrue(Limiter.acquire("host#1", -1));
+        assertTrue(set("zone#1", "zone#2").contains(select(route, null)));
+        assertTrue(Limiter.acquire("zone#1", -1));
+        assertTrue(Limiter.acquire("zone#2", -1));
+        assertEquals("remote#1", select(route, null));
+    }
+
+    @Test
+    public void weight() {
+        Map<String, Register.Container> map = new HashMap<>();
+        map.put("a#1", container("host-b", "zone-b", 75));     // 权重 100/75
+        map.put("b#1", container("host-c", "zone-b", 25));     // 权重 100/25
+        Router.Route route = compile(map);
+        int a = 0, n = 20000;
+        for ( int i = 0; i < n; i ++ )
+            if ( "a#1".equals(route.Addrs[route.select(false)]) )
+                a ++;
+        assertEquals(0.25, (double) a / n, 0.03);
+    }
+
+    @Test
+    public void p2c() {
+        Router.updateLatency("a#1", 100);
+        Router.updateLatency("a#1", 200);
+        assertEquals(120, Router.Latencies.get("a#1").Ewma, 1e-9);
+        Router.updateLatency("b#1", 10);
+        assertTrue(Router.getScore("b#1") < Router.getScore("a#1"));
+        assertEquals(1, Router.getScore("c#1"), 0);     // 没有统计数据
+        // 权重相同时总是选择负载评分较低的节点
+        Map<String, Register.Container> map = new HashMap<>();
+        map.put("a#1", container("host-b", "zone-b", 10));
+        map.put("b#1", container("host-c", "zone-b", 10));
+        Router.Route route = compile(map);
+        for ( int i = 0; i < 100; i ++ )
+            assertEquals("b#1", route.Addrs[route.select(true)]);
+    }
+
+    @Test
+    public void slowStart() {
+        Context.SlowStart = 10;
+        long t = System.currentTimeMillis();
+        assertEquals(1, Router.getSlowStart("a#1", t), 0);
+        Router.Starting.put("a#1", t);
+        assertEquals(Router.SLOWSTART_MIN, Router.getSlowStart("a#1", t), 1e-9);
+        assertEquals(0.55, Router.getSlowStart("a#1", t + 5000), 1e-9);
+        assertEquals(1, Router.getSlowStart("a#1", t + 10000), 0);
+        assertFalse(Router.Starting.containsKey("a#1"));    // 慢启动结束
+        // 连接恢复的节点重新慢启动
+        Router.disableRegister("a#1", true);
+        assertFalse(Router.Starting.containsKey("a#1"));
+        Router.disableRegister("a#1", false);
+        assertTrue(Router.Starting.containsKey("a#1"));
+        // 编译路由时按比例降低慢启动节点的权重
+        Map<String, Register.Container> map = new HashMap<>();
+        map.put("a#1", container("host-b", "zone-b", 10));
+        map.put("b#1", container("host-c", "zone-b", 10));
+        Router.Starting.put("a#1", System.currentTimeMillis());
+        Router.Route route = compile(map);
+        double[] weight = new double[2];
+        for ( int i = 0; i < 2; i ++ )
+            weight["a#1".equals(route.Addrs[i]) ? 0 : 1] = route.Nodes[i].Weight;
+        assertEquals(Router.SLOWSTART_MIN, weight[0] / weight[1], 0.01);
+    }
+
+    @Test
+    public void heartbeat() {
+        Router.Containers = containers(10);
+        Router.ClearTimestamp = System.currentTimeMillis();
+        Router.buildIndex();
+        Router.Index index = Router.RouteIndex;
+        // 等待数量的小幅变化不重建索引
+        Router.Heartbeats.add("zone#1|12");
+        Router.Heartbeats.add("zone#2|6");
+        Router.dealHeartbeat();
+        assertSame(index, Router.RouteIndex);
+        assertEquals(12, Router.Containers.get("zone#1").Waiting);
+        // 过载
+        Router.Heartbeats.add("zone#1|100");
+        Router.dealHeartbeat();
+        assertNotSame(index, Router.RouteIndex);
+        index = Router.RouteIndex;
+        // 权重改变一倍以上
+        Router.Heartbeats.add("zone#2|30");
+        Router.dealHeartbeat();
+        assertNotSame(index, Router.RouteIndex);
+        index = Router.RouteIndex;
+        // 容器退出
+        Router.Heartbeats.add("host#1|-");
+        Router.dealHeartbeat();
+        assertNotSame(index, Router.RouteIndex);
+        index = Router.RouteIndex;
+        assertEquals(0, Router.getState("host#1", Router.Containers.get("host#1"), System.currentTimeMillis()));
+        // 超过刷新间隔时重建索引（慢启动及权重的变化）
+        index = new Router.Index(Router.Containers, System.currentTimeMillis() - Router.INDEX_REFRESH - 1);
+        Router.RouteIndex = index;
+        Router.dealHeartbeat();
+        assertNotSame(index, Router.RouteIndex);
+    }
+
+    @Test
+    public void ring() {
+        String[] addrs = { "a#1", "b#1", "c#1", "d#1" };
+        Router.Ring ring = new Router.Ring(addrs);
+        Router.Ring less = new Router.Ring(Arrays.copyOf(addrs, 3));
+        int[] count = new int[addrs.length];
+        for ( int i = 0; i < 10000; i ++ ) {
+            int hash = Router.hash("key-" + i);
+            int owner = ring.get(hash);
+            assertEquals(owner, ring.get(hash));    // 相同的键值总是选择相同的节点
+            count[owner] ++;
+            // 去掉一个节点时，只有原来在此节点上的键值会改变
+            if ( owner < 3 )
+                assertEquals(owner, less.get(hash));
+        }
+        for ( int c : count )
+            assertTrue(c > 1500 && c < 3500);
+    }
+
+    @Test
+    public void affinity() throws Exception {
+        Map<String, Register.Container> map = containers(10);
+        Router.Route route = compile(map);
+        Context context = Context.request(SERVICE, "get");
+        Register.Node node = Router.select(route, "user-1", false, context);
+        assertSame(node, Router.select(route, "user-1", false, context));
+        open(node.Host + "#" + node.Port);
+        Register.Node other = Router.select(route, "user-1", false, context);
+        assertNotSame(node, other);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rewin.ubsi.consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * 合并进行中的相同请求（single-flight）的单元测试
+ */
+public class SingleFlightTest {
+
+    final static String SERVICE = "flight.test";
+
+    @Before
+    public void before() {
+        SingleFlight.Flights.clear();
+    }
+
+    @After
+    public void after() {
+        SingleFlight.Flights.clear();
+    }
+
+    @Test
+    public void key() throws Exception {
+        ByteBuffer key = SingleFlight.getKey(Context.request(SERVICE, "get", 1, "a"));
+        assertEquals(key, SingleFlight.getKey(Context.request(SERVICE, "get", 1, "a")));
+        assertNotEquals(key, SingleFlight.getKey(Context.request(SERVICE, "get", 2, "a")));
+        assertNotEquals(key, SingleFlight.getKey(Context.request(SERVICE, "list", 1, "a")));
+        assertNotEquals(key, SingleFlight.getKey(Context.request("flight.other", "get", 1, "a")));
+        assertNotEquals(key, SingleFlight.getKey(Context.request(SERVICE, "get", 1, "a").setVersion(1, 0)));
+        // 请求头不影响键值
+        assertEquals(key, SingleFlight.getKey(Context.request(SERVICE, "get", 1, "a").setHeader("h", 1)));
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        Context leader = Context.request(SERVICE, "get", 1);
+        ByteBuffer key = SingleFlight.getKey(leader);
+        SingleFlight flight = SingleFlight.start(key);
+        assertNotNull(flight);
+        assertNull(SingleFlight.start(key));        // 已经有进行中的相同请求
+
+        Context sync = Context.request(SERVICE, "get", 1);
+        Context async = Context.request(SERVICE, "get", 1);
+        AtomicReference<Object> notified = new AtomicReference<>();
+        async.Notify = (code, result) -> notified.set(result);
+        assertTrue(SingleFlight.join(key, sync));
+        assertTrue(SingleFlight.join(key, async));
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("list", new ArrayList<>(Arrays.asList(1, 2)));
+        leader.setTailer("t", 1);
+        flight.complete(ErrorCode.OK, data, leader);
+
+        assertEquals(ErrorCode.OK, sync.getResultCode());
+        assertEquals(data, sync.getResultData());
+        assertEquals(data, notified.get());
+        // 可变的结果每个请求各自一份
+        assertNotSame(data, sync.getResultData());
+        assertNotSame(sync.getResultData(), notified.get());
+        assertEquals(leader.getTailer(), sync.getTailer());
+        assertNotSame(leader.getTailer(), sync.getTailer());
+
+        // 结束后不再合并
+        assertFalse(SingleFlight.Flights.containsKey(key));
+        assertFalse(SingleFlight.join(key, Context.request(SERVICE, "get", 1)));
+        assertNotNull(SingleFlight.start(key));
+    }
+
+    @Test
+    public void immutable() throws Exception {
+        Context leader = Context.request(SERVICE, "get", 2);
+        ByteBuffer key = SingleFlight.getKey(leader);
+        SingleFlight flight = SingleFlight.start(key);
+        Context follower = Context.request(SERVICE, "get", 2);
+        assertTrue(SingleFlight.join(key, follower));
+        String data = new String("result");
+        flight.complete(ErrorCode.OK, data, leader);
+        assertSame(data, follower.getResultData());
+    }
+
+    @Test
+    public void exception() throws Exception {
+        Context leader = Context.request(SERVICE, "get", 3);
+        ByteBuffer key = SingleFlight.getKey(leader);
+        SingleFlight flight = SingleFlight.start(key);
+        Context follower = Context.request(SERVICE, "get", 3);
+        Context other = Context.request(SERVICE, "get", 3);
+        assertTrue(SingleFlight.join(key, follower));
+        flight.complete(new Context.ResultException(ErrorCode.TIMEOUT, "request timeout"), leader);
+        assertEquals(ErrorCode.TIMEOUT, follower.getResultCode());
+        assertEquals("request timeout", follower.getResultData());
+
+        flight = SingleFlight.start(key);
+        assertTrue(SingleFlight.join(key, other));
+        flight.complete(new IllegalStateException("bad"), leader);
+        assertEquals(ErrorCode.REQUEST, other.getResultCode());
+    }
+}
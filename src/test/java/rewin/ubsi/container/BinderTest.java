@@ -0,0 +1,142 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rewin.ubsi.container;
+
+import org.junit.Test;
+import rewin.ubsi.annotation.USEntry;
+import rewin.ubsi.annotation.USParam;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * 服务接口参数绑定（类型转换及缺省值）的单元测试
+ */
+public class BinderTest {
+
+    public enum Color { RED, GREEN }
+
+    public static class Item {
+        public int          id;
+        public String       name;
+        public List<Long>   tags;
+        public Item         child;
+    }
+
+    public static class Entries {
+        @USEntry(params = { @USParam(name = "i"), @USParam(name = "l"), @USParam(name = "s"), @USParam(name = "c"), @USParam(name = "d") })
+        public void basic(ServiceContext ctx, int i, Long l, String s, char c, BigDecimal d) {}
+
+        @USEntry(params = { @USParam(name = "list"), @USParam(name = "map"), @USParam(name = "arr"), @USParam(name = "color") })
+        public void generic(ServiceContext ctx, List<Integer> list, Map<String, Long> map, int[] arr, Color color) {}
+
+        @USEntry(params = { @USParam(name = "item") })
+        public void object(ServiceContext ctx, Item item) {}
+
+        @USEntry(params = { @USParam(name = "a"), @USParam(name = "n", defaultValue = "5"), @USParam(name = "list", defaultValue = "[\"x\"]") })
+        public void defaults(ServiceContext ctx, String a, int n, List<String> list) {}
+    }
+
+    static Binder binder(String name) {
+        for ( Method method : Entries.class.getMethods() )
+            if ( method.getName().equals(name) )
+                return new Binder(method, method.getAnnotation(USEntry.class));
+        throw new IllegalArgumentException(name);
+    }
+
+    @Test
+    public void basic() throws Exception {
+        Binder binder = binder("basic");
+        Object[] res = binder.bind(new Object[] { null, 3L, 4, 7, "x", 1.5 });
+        assertEquals(3, res[1]);
+        assertEquals(4L, res[2]);
+        assertEquals("7", res[3]);
+        assertEquals('x', res[4]);
+        assertEquals(new BigDecimal("1.5"), res[5]);
+        // 类型一致时不转换
+        Object[] param = { null, 3, 4L, "s", 'c', BigDecimal.ONE };
+        assertSame(param, binder.bind(param));
+        try {
+            binder.bind(new Object[] { null, "abc", 4L, "s", 'c', BigDecimal.ONE });
+            fail("can't convert");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("param#1 'i' can't convert java.lang.String to int"));
+        }
+    }
+
+    @Test
+    public void generic() throws Exception {
+        Map<String, Object> map = new HashMap<>();
+        map.put("a", 1);
+        Object[] res = binder("generic").bind(new Object[] { null, new Object[] { 1L, 2L }, map, Arrays.asList(3, 4), "GREEN" });
+        assertEquals(Arrays.asList(1, 2), res[1]);
+        assertEquals(Integer.class, ((List<?>) res[1]).get(0).getClass());
+        assertEquals(Collections.singletonMap("a", 1L), res[2]);
+        assertArrayEquals(new int[] { 3, 4 }, (int[]) res[3]);
+        assertEquals(Color.GREEN, res[4]);
+        res = binder("generic").bind(new Object[] { null, null, null, null, 0 });
+        assertNull(res[1]);
+        assertEquals(Color.RED, res[4]);
+    }
+
+    @Test
+    public void object() throws Exception {
+        Map<String, Object> child = new HashMap<>();
+        child.put("id", 2L);
+        Map<String, Object> map = new HashMap<>();
+        map.put("id", 1L);
+        map.put("name", "item");
+        map.put("tags", new Object[] { 1, 2 });
+        map.put("child", child);
+        Item item = (Item) binder("object").bind(new Object[] { null, map })[1];
+        assertEquals(1, item.id);
+        assertEquals("item", item.name);
+        assertEquals(Arrays.asList(1L, 2L), item.tags);
+        assertEquals(2, item.child.id);
+        assertNull(item.child.child);
+    }
+
+    @Test
+    public void defaults() throws Exception {
+        Binder binder = binder("defaults");
+        Object[] res = binder.bind(new Object[] { null, "a" });
+        assertEquals(4, res.length);
+        assertEquals(5, res[2]);
+        assertEquals(Collections.singletonList("x"), res[3]);
+        // 可变的缺省值每次请求生成新的实例
+        assertNotSame(res[3], binder.bind(new Object[] { null, "a" })[3]);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("a", "b");
+        params.put("n", "6");
+        res = binder.bind(null, params);
+        assertEquals("b", res[1]);
+        assertEquals(6, res[2]);
+        assertEquals(Collections.singletonList("x"), res[3]);
+
+        try {
+            binder.bind(new Object[] { null });
+            fail("no default-value");
+        } catch (Exception e) {
+            assertEquals("no default-value for 'a'", e.getMessage());
+        }
+    }
+}
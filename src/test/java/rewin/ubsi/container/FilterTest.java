@@ -0,0 +1,78 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.container;
+
+import org.junit.Test;
+import rewin.ubsi.annotation.USFilter;
+import rewin.ubsi.annotation.UService;
+
+import static org.junit.Assert.*;
+
+/**
+ * 容器过滤器实例范围的单元测试
+ */
+public class FilterTest {
+
+    /* 在前置/后置接口之间保存状态的过滤器，使用缺省的范围 */
+    @USFilter
+    public static class Stateful {
+        public Object state;
+    }
+
+    @USFilter(scope = UService.SCOPE_SINGLETON)
+    public static class Stateless {
+    }
+
+    @USFilter(scope = UService.SCOPE_POOLED)
+    public static class Pooled {
+    }
+
+    @USFilter(scope = "global")
+    public static class Invalid {
+    }
+
+    @Test
+    public void request() throws Exception {
+        Filter filter = Filter.load(Stateful.class.getName(), null);
+        assertEquals(UService.SCOPE_REQUEST, filter.Scope);
+        Object o = filter.getInstance();
+        assertTrue(o instanceof Stateful);
+        filter.putInstance(o);
+        assertNotSame(o, filter.getInstance());
+    }
+
+    @Test
+    public void singleton() throws Exception {
+        Filter filter = Filter.load(Stateless.class.getName(), null);
+        assertEquals(UService.SCOPE_SINGLETON, filter.Scope);
+        assertSame(filter.getInstance(), filter.getInstance());
+    }
+
+    @Test
+    public void pooled() throws Exception {
+        Filter filter = Filter.load(Pooled.class.getName(), null);
+        Object o = filter.getInstance();
+        assertNotSame(o, filter.getInstance());
+        filter.putInstance(o);
+        assertSame(o, filter.getInstance());
+    }
+
+    @Test(expected = Exception.class)
+    public void invalid() throws Exception {
+        Filter.load(Invalid.class.getName(), null);
+    }
+}
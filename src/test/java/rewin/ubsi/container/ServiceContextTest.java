@@ -0,0 +1,89 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.container;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import rewin.ubsi.common.IOData;
+import rewin.ubsi.consumer.Context;
+import rewin.ubsi.consumer.ErrorCode;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 容器请求上下文的单元测试
+ */
+public class ServiceContextTest {
+
+    /* 模拟Consumer的连接 */
+    static EmbeddedChannel channel(ChannelHandler... handlers) {
+        return new EmbeddedChannel(handlers) {
+            @Override
+            public SocketAddress remoteAddress() {
+                return new InetSocketAddress("127.0.0.1", 7112);
+            }
+        };
+    }
+
+    /* 消息模式的请求 */
+    static ServiceContext request(Map<String,Object> header) throws Exception {
+        return new ServiceContext(channel(), new Object[] { "req-1", header, "svc", new Object[] { "entry" }, Context.FLAG_MESSAGE });
+    }
+
+    @Test
+    public void replyChannel() throws Exception {
+        Map<String,Object> header = new HashMap<>();
+        header.put(Context.HEADER_REQ_REPLY, Context.CHANNEL_REPLY + "consumer-1");
+        ServiceContext ctx = request(header);
+        assertEquals("req-1", ctx.ReqID);
+        assertEquals(Context.CHANNEL_REPLY + "consumer-1", ctx.getReplyChannel());
+        // 早期版本的Consumer没有回复频道，结果发送到公共频道
+        assertEquals(Context.CHANNEL_NOTIFY, request(null).getReplyChannel());
+        assertEquals(Context.CHANNEL_NOTIFY, request(new HashMap<>()).getReplyChannel());
+    }
+
+    @Test
+    public void expired() throws Exception {
+        Map<String,Object> header = new HashMap<>();
+        header.put(Context.HEADER_REQ_DEADLINE, System.currentTimeMillis() + 60000);
+        assertFalse(request(header).isExpired());
+        header.put(Context.HEADER_REQ_DEADLINE, System.currentTimeMillis() - 1);
+        assertTrue(request(header).isExpired());
+        assertFalse(request(null).isExpired());
+
+        // 已过期的请求不进入工作线程池，直接返回EXPIRED
+        long expired = Bootstrap.RequestExpired.get();
+        long total = Bootstrap.RequestTotal.get();
+        EmbeddedChannel ch = channel(new IOHandler());
+        ch.writeInbound((Object) new Object[] { 1, header, "svc", new Object[] { "entry" }, (byte) 0 });
+        assertEquals(expired + 1, Bootstrap.RequestExpired.get());
+        assertEquals(total, Bootstrap.RequestTotal.get());
+        EmbeddedChannel decoder = new EmbeddedChannel(new IOData.Decoder());
+        decoder.writeInbound((ByteBuf) ch.readOutbound());
+        Object[] resp = decoder.readInbound();
+        assertEquals(1, resp[0]);
+        assertEquals((byte) ErrorCode.EXPIRED, resp[1]);
+    }
+}
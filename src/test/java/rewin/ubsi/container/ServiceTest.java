@@ -0,0 +1,187 @@
+/*
+ * Copyright 1999-2022 Rewin Network Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rewin.ubsi.container;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Test;
+import rewin.ubsi.annotation.USAfter;
+import rewin.ubsi.annotation.USEntry;
+import rewin.ubsi.annotation.UService;
+import rewin.ubsi.common.IOData;
+import rewin.ubsi.consumer.ErrorCode;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * 服务加载、接口调用（同步/异步）及实例范围的单元测试
+ */
+public class ServiceTest {
+
+    final static String SERVICE = "service.test";
+
+    @UService
+    public static class Request {
+        public static int Created = 0;
+        public Request() { Created ++; }
+        @USEntry
+        public String echo(ServiceContext ctx, String s) { return s; }
+        @USEntry
+        public Object fail(ServiceContext ctx) throws Exception { throw new IllegalStateException("fail"); }
+    }
+
+    @UService
+    public static class Async {
+        public static CompletableFuture<String> Future;
+        public static int After = 0;
+        @USEntry
+        public CompletableFuture<String> get(ServiceContext ctx) { return Future; }
+        @USAfter
+        public void after(ServiceContext ctx) { After ++; }
+    }
+
+    @UService(scope = UService.SCOPE_POOLED)
+    public static class Pooled {
+        @USEntry
+        public Object self(ServiceContext ctx) { return null; }
+    }
+
+    @UService(scope = UService.SCOPE_SINGLETON)
+    public static class Singleton {
+        @USEntry
+        public Object self(ServiceContext ctx) { return null; }
+    }
+
+    @UService(scope = "global")
+    public static class Invalid {
+    }
+
+    @After
+    public void after() {
+        Bootstrap.ServiceMap.remove(SERVICE);
+    }
+
+    /* 加载并启动服务 */
+    static Service start(Class<?> cls) throws Exception {
+        Service srv = Service.load(cls.getName(), null, SERVICE);
+        srv.Status = 1;
+        Bootstrap.ServiceMap.put(SERVICE, srv);
+        return srv;
+    }
+
+    /* 在工作线程中处理请求，返回发送结果的连接 */
+    static EmbeddedChannel request(String entry, Object... args) throws Exception {
+        Object[] param = new Object[args.length + 1];
+        param[0] = entry;
+        System.arraycopy(args, 0, param, 1, args.length);
+        EmbeddedChannel ch = ServiceContextTest.channel();
+        new WorkHandler(new ServiceContext(ch, new Object[] { 1, null, SERVICE, param, (byte) 0 })).run();
+        return ch;
+    }
+
+    /* 解码返回的结果：[ id, code, data ] */
+    static Object[] response(EmbeddedChannel ch) {
+        ByteBuf buf = ch.readOutbound();
+        assertNotNull(buf);
+        EmbeddedChannel decoder = new EmbeddedChannel(new IOData.Decoder());
+        decoder.writeInbound(buf);
+        return decoder.readInbound();
+    }
+
+    @Test
+    public void invoker() throws Exception {
+        Invoker invoker = new Invoker(Request.class.getMethod("echo", ServiceContext.class, String.class));
+        assertEquals("ok", invoker.invoke(new Request(), null, "ok"));
+        try {
+            new Invoker(Request.class.getMethod("fail", ServiceContext.class)).invoke(new Request(), (Object) null);
+            fail("invoke exception");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);     // 与Method.invoke()相同
+        }
+    }
+
+    @Test
+    public void invoke() throws Exception {
+        Service srv = start(Request.class);
+        Object[] res = response(request("echo", "hello"));
+        assertEquals(1, res[0]);
+        assertEquals((byte) ErrorCode.OK, res[1]);
+        assertEquals("hello", res[2]);
+        res = response(request("fail"));
+        assertEquals((byte) ErrorCode.EXCEPTION, res[1]);
+        assertEquals(1, srv.EntryMap.get("fail").RequestError.get());
+        assertEquals((byte) ErrorCode.NOENTRY, response(request("none"))[1]);
+    }
+
+    @Test
+    public void scope() throws Exception {
+        Service srv = start(Request.class);
+        assertEquals(UService.SCOPE_REQUEST, srv.Scope);
+        int created = Request.Created;
+        request("echo", "a");
+        request("echo", "b");
+        assertEquals(created + 2, Request.Created);      // 每个请求新建实例
+
+        srv = Service.load(Pooled.class.getName(), null, SERVICE);
+        Object o = srv.getInstance();
+        srv.putInstance(o);
+        assertSame(o, srv.getInstance());
+        assertNotSame(o, srv.getInstance());
+
+        srv = Service.load(Singleton.class.getName(), null, SERVICE);
+        assertSame(srv.getInstance(), srv.getInstance());
+    }
+
+    @Test(expected = Exception.class)
+    public void invalidScope() throws Exception {
+        Service.load(Invalid.class.getName(), null, SERVICE);
+    }
+
+    @Test
+    public void async() throws Exception {
+        Service srv = start(Async.class);
+        assertTrue(srv.EntryMap.get("get").Async);
+        assertFalse(Service.load(Request.class.getName(), null, SERVICE).EntryMap.get("echo").Async);
+        // 未完成的异步接口不占用工作线程，完成后执行@USAfter并返回结果
+        Async.Future = new CompletableFuture<>();
+        int after = Async.After;
+        EmbeddedChannel ch = request("get");
+        assertNull(ch.readOutbound());
+        assertEquals(after, Async.After);
+        assertEquals(1, WorkHandler.Dealing.size());    // 仍按接口的超时时间检查
+        Async.Future.complete("done");
+        Object[] res = response(ch);
+        assertEquals((byte) ErrorCode.OK, res[1]);
+        assertEquals("done", res[2]);
+        assertEquals(after + 1, Async.After);
+        assertTrue(WorkHandler.Dealing.isEmpty());
+        assertEquals(1, srv.RequestOver.get());
+        // 已完成的结果直接返回
+        Async.Future = CompletableFuture.completedFuture("now");
+        assertEquals("now", response(request("get"))[2]);
+        // 异步接口失败时与同步接口的异常相同
+        Async.Future = new CompletableFuture<>();
+        ch = request("get");
+        Async.Future.completeExceptionally(new IllegalStateException("fail"));
+        assertEquals((byte) ErrorCode.EXCEPTION, response(ch)[1]);
+        assertEquals(1, srv.EntryMap.get("get").RequestError.get());
+    }
+}